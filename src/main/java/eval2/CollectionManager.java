@@ -1,7 +1,11 @@
 package eval2;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.mongodb.MongoException;
 import com.mongodb.client.MongoCollection;
@@ -16,6 +20,9 @@ public class CollectionManager {
 
 	private final MongoDatabase mongoDatabase;
 	
+	// Collections (database.collection) whose secondary indexes were ensured by this process
+	private static final Set<String> indexedCollections = Collections.synchronizedSet(new HashSet<>());
+	
 	/**
 	 * Create a IndexManager for a MongoDB instance
 	 * @param mongoDB an instance of MongoDB
@@ -54,6 +61,72 @@ public class CollectionManager {
 		}
 	}
 
+	/**
+	 * Create a Collection in a MongoDB database together with its secondary indexes
+	 * @param collectionName name of the MongoDB collection
+	 * @param schema document containing the schema of the collection
+	 * @param indexes keys of the secondary indexes
+	 */
+	public void createIndex(String collectionName, Document schema, List<Document> indexes) {
+		createIndex(collectionName, schema);
+		ensureIndexes(collectionName, indexes);
+	}
+
+	/**
+	 * Create the secondary indexes of an existing collection that don't exist yet.
+	 * The indexes of a collection are checked once per process.
+	 * @param collectionName name of the MongoDB collection
+	 * @param indexes keys of the secondary indexes
+	 * @return number of created indexes
+	 */
+	public int ensureIndexes(String collectionName, List<Document> indexes) {
+		String id = mongoDatabase.getName() + "." + collectionName;
+		if (indexedCollections.contains(id)) return 0;
+		// creating an index would create the collection without its schema
+		if (!mongoDatabase.listCollectionNames().into(new ArrayList<>()).contains(collectionName)) return 0;
+
+		MongoCollection<Document> collection = mongoDatabase.getCollection(collectionName);
+		List<Document> existing = new ArrayList<>();
+		for (Document index : collection.listIndexes()) {
+			existing.add((Document) index.get("key"));
+		}
+
+		int created = 0;
+		for (Document keys : indexes) {
+			boolean exists = false;
+			for (Document e : existing) {
+				exists |= sameKeys(e, keys);
+			}
+			if (!exists) {
+				collection.createIndex(keys);
+				System.out.println("Index " + keys.toJson() + " created on " + collectionName);
+				created++;
+			}
+		}
+		indexedCollections.add(id);
+		return created;
+	}
+
+	/**
+	 * Compare index keys including their order
+	 */
+	private static boolean sameKeys(Document a, Document b) {
+		List<Map.Entry<String,Object>> ea = new ArrayList<>(a.entrySet());
+		List<Map.Entry<String,Object>> eb = new ArrayList<>(b.entrySet());
+		if (ea.size() != eb.size()) return false;
+		for (int i = 0; i < ea.size(); i++) {
+			Object va = ea.get(i).getValue();
+			Object vb = eb.get(i).getValue();
+			if (!ea.get(i).getKey().equals(eb.get(i).getKey())) return false;
+			if (va instanceof Number && vb instanceof Number) {
+				if (Math.signum(((Number) va).doubleValue()) != Math.signum(((Number) vb).doubleValue())) return false;
+			} else if (!va.equals(vb)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Write an object (Document) to a MongoDB collection.
 	 * @param collectionName name of the MongoDB collection
@@ -4,13 +4,18 @@ import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 import util.FileUtils;
@@ -22,33 +27,50 @@ public class Eval {
 	private static final String PROJECTS_DIR = "./projects";
 	private static final File PROJECTS_FOLDER = new File(PROJECTS_DIR);
 	
-	private static List<String> evaluationDates = new ArrayList<>();
+	// Number of (project, evaluationDate) units evaluated concurrently, eval.properties 'eval.threads'
+	private static final String EVAL_THREADS = "eval.threads";
 	
-	private static Date fromDate;
-	private static Date toDate;
+	// Number of consecutive evaluationDates evaluated as one range, eval.properties 'eval.range.size'
+	private static final String EVAL_RANGE_SIZE = "eval.range.size";
 	
-	private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+	// Capacity of the queues between the stages of a pipelined evaluation, eval.properties 'eval.pipeline.capacity'
+	private static final String EVAL_PIPELINE_CAPACITY = "eval.pipeline.capacity";
+	
+	// DateTimeFormatter is immutable and can be shared between evaluation threads
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 	
 	
 	
 	public static void main(String[] args) {
 		
+		if ( args.length > 0 && args[0].equals("profile") ) {
+			profile(args);
+			return;
+		}
+		
+		if ( args.length > 0 && args[0].equals("whatif") ) {
+			whatIf(args);
+			return;
+		}
+		
 		if ( args.length != 0 && args.length != 2 && args.length != 4 ) {
 			usage();
 			return;
 		}
 		
+		List<String> evaluationDates = new ArrayList<>();
+		
 		if ( args.length == 0 ) {
-			evaluationDates.add( dateFormat.format(new Date()) );
+			evaluationDates.add( LocalDate.now().format(dateFormat) );
 		}
 			
 		if ( args.length == 2 ) {
 			if ( args[0].equals("evaluationDate") ) {
 				try {
-					dateFormat.parse(args[1]);
+					LocalDate.parse(args[1], dateFormat);
 					evaluationDates.add( args[1] );
 					log.info("Using user-defined evaluationDate: " + args[1]);
-				} catch (ParseException e) {
+				} catch (DateTimeParseException e) {
 					usage();
 					return;
 				}
@@ -61,13 +83,13 @@ public class Eval {
 		if ( args.length == 4 ) {
 			if ( args[0].equals("from") && args[2].equals("to") ) {
 				try {
-					fromDate = dateFormat.parse(args[1]);
-					toDate = dateFormat.parse(args[3]);
+					LocalDate fromDate = LocalDate.parse(args[1], dateFormat);
+					LocalDate toDate = LocalDate.parse(args[3], dateFormat);
 					
 					evaluationDates.addAll( enumeratePeriod(fromDate, toDate) );
 					
-					log.info("Using user-defined evaluation period: " + dateFormat.format( fromDate ) + " - " + dateFormat.format( toDate ) + ".\n" );
-				} catch (ParseException e) {
+					log.info("Using user-defined evaluation period: " + fromDate.format(dateFormat) + " - " + toDate.format(dateFormat) + ".\n" );
+				} catch (DateTimeParseException e) {
 					usage();
 					return;
 				}
@@ -79,67 +101,291 @@ public class Eval {
 
 		List<File> projectFolders = getProjectFolders(PROJECTS_DIR);
 
-		evaluate(projectFolders);
+		evaluate(projectFolders, evaluationDates, loadEvalProperties(PROJECTS_DIR));
 
 		notifyDashboard();
 		
 	}
 
-	private static void evaluate( List<File> projectFolders ) {
+	/**
+	 * Evaluate every project folder for every evaluationDate.
+	 * Each (project, evaluationDate) pair is an independent unit of work, the units are executed
+	 * by a fixed pool of 'eval.threads' threads (default 1, i.e. sequential evaluation).
+	 * A failing unit is logged and does not affect the other units.
+	 * With 'eval.range.size' greater than 1, a unit is a project and a range of up to 'eval.range.size'
+	 * consecutive evaluationDates, whose queries are executed once for the whole range.
+	 * Otherwise, with 'eval.pipeline.capacity' greater than 0, a unit is a project and all evaluationDates,
+	 * evaluated by overlapping query, model and store stages (see EvalPipeline).
+	 * @param projectFolders project folders to evaluate
+	 * @param evaluationDates dates (yyyy-MM-dd) to evaluate each project for
+	 * @param evalProperties contents of eval.properties
+	 */
+	private static void evaluate( List<File> projectFolders, List<String> evaluationDates, Properties evalProperties ) {
+		
+		QueryCache.configure(evalProperties);
+		ResultStore.configure(evalProperties);
+		QueryBudget.resetCutQueries();
+		
+		int threads = Math.max(1, Integer.parseInt( evalProperties.getProperty(EVAL_THREADS, "1").trim() ) );
+		int rangeSize = Math.max(1, Integer.parseInt( evalProperties.getProperty(EVAL_RANGE_SIZE, "1").trim() ) );
+		int pipelineCapacity = Math.max(0, Integer.parseInt( evalProperties.getProperty(EVAL_PIPELINE_CAPACITY, "0").trim() ) );
+		log.info("Evaluating " + projectFolders.size() + " project(s) for " + evaluationDates.size() + " evaluationDate(s) using " + threads + " thread(s).\n");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> units = new ArrayList<>();
+		// projects opened once for all of their evaluationDates
+		List<EvalProject> opened = new ArrayList<>();
+		
 		for ( File projectDir : projectFolders ) {
-			for ( String ed : evaluationDates ) {
-				log.info("Evaluating project folder " + projectDir.getName() + " for evaluationDate " + ed + ".\n");
+			if ( rangeSize > 1 ) {
+				for ( int i = 0; i < evaluationDates.size(); i += rangeSize ) {
+					List<String> range = evaluationDates.subList(i, Math.min(i + rangeSize, evaluationDates.size()));
+					units.add( executor.submit( () -> evaluateProjectRange(projectDir, range) ) );
+				}
+			} else if ( pipelineCapacity > 0 && !evaluationDates.isEmpty() ) {
+				units.add( executor.submit( () -> evaluateProjectPipeline(projectDir, evaluationDates, pipelineCapacity) ) );
+			} else if ( !evaluationDates.isEmpty() ) {
+				EvalProject base = openProject(projectDir, evaluationDates.get(0));
+				if ( base == null ) continue;
+				opened.add(base);
+				for ( String ed : evaluationDates ) {
+					units.add( executor.submit( () -> evaluateProject(base, ed) ) );
+				}
+			}
+		}
+		
+		executor.shutdown();
+		
+		try {
+			for ( Future<?> unit : units ) {
 				try {
-					EvalProject ep = new EvalProject(projectDir, ed);
-					ep.run();
-				} catch( Exception e ) {
-					e.printStackTrace();
-					log.severe("Evaluation of project in folder " + projectDir + " terminated with an error!" );
+					unit.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					executor.shutdownNow();
+					log.severe("Evaluation interrupted!");
+					return;
+				} catch (ExecutionException e) {
+					// failures are handled per unit in evaluateProject
+					log.severe("Unexpected failure of evaluation unit: " + e.getCause());
 				}
 			}
+		} finally {
+			for ( EvalProject base : opened ) {
+				base.close();
+			}
+		}
+		
+		if ( QueryCache.getInstance().isEnabled() ) {
+			log.info( QueryCache.getInstance().getStatistics() + "\n" );
+		}
+		List<String> cutQueries = QueryBudget.getCutQueries();
+		if ( !cutQueries.isEmpty() ) {
+			log.warning( cutQueries.size() + " queries cut by their time budget:\n" + String.join("\n", cutQueries) + "\n" );
+		}
+		if ( SingleFlight.getInstance().hasShared() ) {
+			log.info( SingleFlight.getInstance().getStatistics() + "\n" );
+		}
+		if ( ResultStore.getInstance().isEnabled() ) {
+			log.info( ResultStore.getInstance().getStatistics() + "\n" );
+		}
+	}
+	
+	/**
+	 * Profile the source queries of every project folder (see QueryProfiler)
+	 * @param args command line arguments: profile [evaluationDate]
+	 */
+	private static void profile( String[] args ) {
+		if ( args.length > 2 ) {
+			usage();
+			return;
+		}
+		
+		String evaluationDate = LocalDate.now().format(dateFormat);
+		if ( args.length == 2 ) {
+			try {
+				LocalDate.parse(args[1], dateFormat);
+				evaluationDate = args[1];
+			} catch (DateTimeParseException e) {
+				usage();
+				return;
+			}
+		}
+		
+		Properties evalProperties = loadEvalProperties(PROJECTS_DIR);
+		for ( File projectDir : getProjectFolders(PROJECTS_DIR) ) {
+			log.info("Profiling project folder " + projectDir.getName() + " for evaluationDate " + evaluationDate + ".\n");
+			try {
+				new QueryProfiler(projectDir, evaluationDate, evalProperties).run();
+			} catch( Exception e ) {
+				e.printStackTrace();
+				log.severe("Profiling of project in folder " + projectDir + " terminated with an error!" );
+			}
+		}
+	}
+	
+	/**
+	 * Re-evaluate the stored metrics of every project folder under the current quality model (see WhatIf)
+	 * @param args command line arguments: whatif from yyyy-MM-dd to yyyy-MM-dd [scenario]
+	 */
+	private static void whatIf( String[] args ) {
+		if ( (args.length != 5 && args.length != 6) || !args[1].equals("from") || !args[3].equals("to") ) {
+			usage();
+			return;
+		}
+		
+		List<String> evaluationDates;
+		try {
+			evaluationDates = enumeratePeriod( LocalDate.parse(args[2], dateFormat), LocalDate.parse(args[4], dateFormat) );
+		} catch (DateTimeParseException e) {
+			usage();
+			return;
+		}
+		if ( evaluationDates.isEmpty() ) {
+			usage();
+			return;
+		}
+		String scenario = ( args.length == 6 ) ? args[5] : null;
+		
+		for ( File projectDir : getProjectFolders(PROJECTS_DIR) ) {
+			log.info("What-if evaluation of project folder " + projectDir.getName() + " for evaluation period " + args[2] + " - " + args[4] + ".\n");
+			try {
+				new WhatIf(projectDir, evaluationDates, scenario).run();
+			} catch( Exception e ) {
+				e.printStackTrace();
+				log.severe("What-if evaluation of project in folder " + projectDir + " terminated with an error!" );
+			}
+		}
+	}
+	
+	/**
+	 * Open a project folder once for all of its evaluationDates: the quality model is validated,
+	 * the query templates and formulas are loaded and compiled, the MongoDB connections are opened
+	 * @param projectDir the project folder
+	 * @param evaluationDate the first evaluationDate
+	 * @return the opened EvalProject, null if the project can't be opened
+	 */
+	private static EvalProject openProject( File projectDir, String evaluationDate ) {
+		try {
+			EvalProject base = new EvalProject(projectDir, evaluationDate);
+			base.open();
+			return base;
+		} catch( Exception e ) {
+			e.printStackTrace();
+			log.severe("Opening project in folder " + projectDir + " terminated with an error!" );
+			return null;
+		}
+	}
+
+	/**
+	 * Evaluate a single opened project folder for a single evaluationDate
+	 * @param base the opened EvalProject of the project folder
+	 * @param evaluationDate the evaluationDate
+	 */
+	private static void evaluateProject( EvalProject base, String evaluationDate ) {
+		File projectDir = base.getProjectFolder();
+		log.info("Evaluating project folder " + projectDir.getName() + " for evaluationDate " + evaluationDate + ".\n");
+		try {
+			base.forDate(evaluationDate).runOpened();
+		} catch( Exception e ) {
+			e.printStackTrace();
+			log.severe("Evaluation of project in folder " + projectDir + " for evaluationDate " + evaluationDate + " terminated with an error!" );
+		}
+	}
+
+	/**
+	 * Evaluate a single project folder for a range of evaluationDates
+	 * @param projectDir the project folder
+	 * @param evaluationDates the evaluationDates
+	 */
+	private static void evaluateProjectRange( File projectDir, List<String> evaluationDates ) {
+		String range = evaluationDates.get(0) + " - " + evaluationDates.get(evaluationDates.size() - 1);
+		log.info("Evaluating project folder " + projectDir.getName() + " for evaluation period " + range + ".\n");
+		try {
+			EvalRange er = new EvalRange(projectDir, evaluationDates);
+			er.run();
+		} catch( Exception e ) {
+			e.printStackTrace();
+			log.severe("Evaluation of project in folder " + projectDir + " for evaluation period " + range + " terminated with an error!" );
+		}
+	}
+
+	/**
+	 * Evaluate a single project folder for a sequence of evaluationDates in pipelined stages
+	 * @param projectDir the project folder
+	 * @param evaluationDates the evaluationDates
+	 * @param capacity capacity of the queues between the stages
+	 */
+	private static void evaluateProjectPipeline( File projectDir, List<String> evaluationDates, int capacity ) {
+		String range = evaluationDates.get(0) + " - " + evaluationDates.get(evaluationDates.size() - 1);
+		log.info("Evaluating project folder " + projectDir.getName() + " for evaluation period " + range + " (pipelined).\n");
+		try {
+			EvalPipeline ep = new EvalPipeline(projectDir, evaluationDates, capacity);
+			ep.run();
+		} catch( Exception e ) {
+			e.printStackTrace();
+			log.severe("Evaluation of project in folder " + projectDir + " for evaluation period " + range + " terminated with an error!" );
 		}
 	}
 
 	public static void evaluateQualityModel(String dir, Date date1, Date date2) throws ParseException {
 
+		List<String> evaluationDates = new ArrayList<>();
+		
 		// read parameters
 		if (date1 != null && date2 != null) { // if two dates are passed --> we obtain a from and to dates
-			fromDate = date1;
-			toDate = date2;
+			LocalDate fromDate = toLocalDate(date1);
+			LocalDate toDate = toLocalDate(date2);
 			evaluationDates.addAll( enumeratePeriod(fromDate, toDate) );
-			log.info("Using user-defined evaluation period: " + dateFormat.format( fromDate ) + " - " + dateFormat.format( toDate ) + ".\n" );
+			log.info("Using user-defined evaluation period: " + fromDate.format(dateFormat) + " - " + toDate.format(dateFormat) + ".\n" );
 		} else if (date1 != null ) { // if only one date is passed --> we obtain an evaluation date
-			evaluationDates.add(dateFormat.format(date1));
-			log.info("Using user-defined evaluationDate: " + dateFormat.format(date1));
+			evaluationDates.add( toLocalDate(date1).format(dateFormat) );
+			log.info("Using user-defined evaluationDate: " + toLocalDate(date1).format(dateFormat));
 		}
 
 		List<File> projectFolders = getProjectFolders(dir);
 
-		evaluate(projectFolders);
+		String projectsDir = (dir != null && !dir.isEmpty()) ? dir : PROJECTS_DIR;
+		evaluate(projectFolders, evaluationDates, loadEvalProperties(projectsDir));
+	}
+	
+	private static LocalDate toLocalDate(Date date) {
+		return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
 	}
 	
-	private static List<String> enumeratePeriod(Date fromDate, Date toDate) {
+	private static List<String> enumeratePeriod(LocalDate fromDate, LocalDate toDate) {
 
-		Calendar c = Calendar.getInstance();
-		
 		List<String> days = new ArrayList<>();
 		
-		Date i = fromDate;
-		while ( i.compareTo(toDate) <= 0 ) {
-			days.add( dateFormat.format(i) );
-			c.setTime(i);
-			c.add(Calendar.DATE, 1);
-			i = c.getTime();
+		LocalDate i = fromDate;
+		while ( !i.isAfter(toDate) ) {
+			days.add( i.format(dateFormat) );
+			i = i.plusDays(1);
 		}
 		
 		return days;
 	}
 	
+	/**
+	 * Read eval.properties of a projects folder
+	 * @param projectsDir the projects folder
+	 * @return contents of eval.properties, empty if the file does not exist
+	 */
+	private static Properties loadEvalProperties(String projectsDir) {
+		File f = new File(projectsDir + File.separatorChar + "eval.properties");
+		if ( !f.isFile() ) {
+			return new Properties();
+		}
+		return FileUtils.loadProperties(f);
+	}
+	
 	private static void usage() {
 		System.out.println("Usage:");
 		System.out.println("java -jar LD-eval.jar");
 		System.out.println("java -jar LD-eval.jar evaluationDate 2019-01-31");
 		System.out.println("java -jar LD-eval.jar from 2019-01-01 to 2019-01-31");
+		System.out.println("java -jar LD-eval.jar profile [2019-01-31]");
+		System.out.println("java -jar LD-eval.jar whatif from 2019-01-01 to 2019-01-31 [scenario]");
 	}
 
 
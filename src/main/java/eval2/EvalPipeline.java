@@ -0,0 +1,111 @@
+package eval2;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Evaluation of a project for a sequence of evaluationDates as three stages connected by bounded queues:
+ * the query stage executes the param and metric queries of a date, the model stage computes its relations,
+ * factors and indicators, the store stage writes the results to the target MongoDB. While the metrics
+ * of one date are queried, the model of the previous date is computed and the date before is stored.
+ * A full queue blocks the preceding stage, so at most 'capacity' evaluations wait between two stages.
+ * A failing date is logged and does not affect the other dates.
+ */
+public class EvalPipeline {
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	// Marks the end of the evaluations passed to a stage
+	private static final EvalProject.Evaluation END = new EvalProject.Evaluation(null);
+
+	// Project folder containing queries, properties etc.
+	private final File projectFolder;
+
+	// evaluationDates, evaluated in order
+	private final List<String> evaluationDates;
+
+	// Capacity of the queues between the stages
+	private final int capacity;
+
+	public EvalPipeline( File projectFolder, List<String> evaluationDates, int capacity ) {
+		this.projectFolder = projectFolder;
+		this.evaluationDates = evaluationDates;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public void run() {
+
+		EvalProject base = new EvalProject( projectFolder, evaluationDates.get(0) );
+		base.open();
+		ExecutorService stages = Executors.newFixedThreadPool(2);
+		try {
+			BlockingQueue<EvalProject.Evaluation> evaluated = new ArrayBlockingQueue<>(capacity);
+			BlockingQueue<EvalProject.Evaluation> computed = new ArrayBlockingQueue<>(capacity);
+
+			Future<?> model = stages.submit( () -> runStage( "Model", evaluated, computed, base ) );
+			Future<?> store = stages.submit( () -> runStage( "Store", computed, null, base ) );
+
+			try {
+				for ( String evaluationDate : evaluationDates ) {
+					try {
+						// the query stage evaluates one date at a time, each date gets its own budget
+						base.getMongodbSource().setQueryBudget( QueryBudget.start(base.getProjectProperties(), evaluationDate) );
+						evaluated.put( base.forDate(evaluationDate).evaluateMetrics() );
+					} catch ( RuntimeException e ) {
+						log.severe("Query stage of evaluationDate " + evaluationDate + " failed: " + e + "\n");
+					}
+				}
+			} finally {
+				evaluated.put(END);
+			}
+			EvalProject.awaitResult(model);
+			EvalProject.awaitResult(store);
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Evaluation pipeline interrupted", e);
+		} finally {
+			stages.shutdownNow();
+			base.close();
+		}
+	}
+
+	/**
+	 * Run the model stage (output != null) or the store stage (output == null) until the end of the input
+	 * @param name name of the stage for logging
+	 * @param input evaluations passed by the preceding stage
+	 * @param output evaluations passed to the following stage, null for the last stage
+	 * @param base the opened EvalProject of the pipeline
+	 */
+	private void runStage( String name, BlockingQueue<EvalProject.Evaluation> input, BlockingQueue<EvalProject.Evaluation> output, EvalProject base ) {
+		try {
+			try {
+				for ( EvalProject.Evaluation evaluation = input.take(); evaluation != END; evaluation = input.take() ) {
+					try {
+						EvalProject day = base.forDate( evaluation.evaluationDate );
+						if ( output != null ) {
+							day.evaluateModel( evaluation );
+							output.put( evaluation );
+						} else {
+							day.store( evaluation );
+						}
+					} catch ( RuntimeException e ) {
+						log.severe(name + " stage of evaluationDate " + evaluation.evaluationDate + " failed: " + e + "\n");
+					}
+				}
+			} finally {
+				if ( output != null ) {
+					output.put(END);
+				}
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -4,10 +4,24 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
 
 import type.Factor;
 import type.IndexItem;
@@ -17,9 +31,12 @@ import type.Relation;
 
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import util.Evaluator;
+import util.Formula;
 import util.FileUtils;
 
 public class EvalProject {
@@ -47,6 +64,66 @@ public class EvalProject {
 	private Map<String,QueryDef> metricQuerySet;
 	
 	public String projectErrorStrategy;
+	
+	// Number of source queries executed concurrently, project.properties 'query.concurrency'
+	private int queryConcurrency;
+	
+	// Executor for concurrent source queries, null if queries are executed sequentially
+	private ExecutorService queryExecutor;
+	
+	// Evaluate formulas by compiled MethodHandle trees, project.properties 'formula.compiled'
+	private boolean formulaCompiled;
+	
+	// Skip metrics with unchanged source collections, project.properties 'incremental'
+	private boolean incremental;
+	
+	// Reuse results of metric queries with identical fingerprints, project.properties 'reuse.fingerprint'
+	private boolean reuseFingerprint;
+	
+	// Current watermarks of the source collections, part of the query fingerprints (reuse.fingerprint)
+	private Watermarks sourceWatermarks;
+	
+	// Fuse metric queries on the same collection into single aggregations, project.properties 'metrics.fusion'
+	private boolean metricsFusion;
+	
+	// Metric queries grouped by source collection, computed by open() if metricsFusion is set: index -> metric query names
+	private Map<String,List<String>> fusionGroups;
+	
+	// Execute the metric queries of an evaluation in one round trip using $unionWith, project.properties 'metrics.batch.unionWith'
+	private boolean metricsBatch;
+	
+	// Optimize query pipelines at load time, project.properties 'query.optimize'
+	private boolean queryOptimize;
+	
+	// Aggregate relations to factors and indicators in memory instead of querying the relations collection,
+	// project.properties 'aggregation.inMemory'
+	private boolean inMemoryAggregation;
+	
+	// Rewrite only metrics, factors, indicators and relations downstream of changed metrics, project.properties 'dirty.tracking'
+	private boolean dirtyTracking;
+	
+	// Fingerprints of the executed metric queries: metric query name -> fingerprint
+	private final Map<String,String> queryFingerprints = new ConcurrentHashMap<>();
+	
+	// Fields of stored factors and indicators compared by dirty tracking
+	private static final List<String> FACTOR_FIELDS = Arrays.asList("value", "info", "name", "description", "indicators", "weights");
+	private static final List<String> INDICATOR_FIELDS = Arrays.asList("value", "info", "name", "description", "parents", "weights");
+	
+	// Variable slots of compiled metric formulas, reused per thread
+	private static final ThreadLocal<double[]> formulaSlots = ThreadLocal.withInitial( () -> new double[8] );
+	
+	// Maximum number of metric query results kept for reuse within a run
+	private static final int REUSABLE_RESULTS_SIZE = 10000;
+	
+	// Metric query results of this run: project/metric/fingerprint -> execution result
+	private static final Map<String,Map<String,Object>> reusableResults = Collections.synchronizedMap(
+		new LinkedHashMap<String,Map<String,Object>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String,Map<String,Object>> eldest ) {
+				return size() > REUSABLE_RESULTS_SIZE;
+			}
+		});
 
 	
 	public EvalProject(File projectFolder, String evaluationDate ) {
@@ -55,6 +132,15 @@ public class EvalProject {
 		this.projectProperties = FileUtils.loadProperties( new File(projectPropertyFilename) );
 		
 		projectErrorStrategy = projectProperties.getProperty("onError", IndexItem.ON_ERROR_DROP);
+		queryConcurrency = Math.max(1, Integer.parseInt( projectProperties.getProperty("query.concurrency", "1").trim() ) );
+		formulaCompiled = Boolean.parseBoolean( projectProperties.getProperty("formula.compiled", "false").trim() );
+		incremental = Boolean.parseBoolean( projectProperties.getProperty("incremental", "false").trim() );
+		reuseFingerprint = Boolean.parseBoolean( projectProperties.getProperty("reuse.fingerprint", "false").trim() );
+		metricsFusion = Boolean.parseBoolean( projectProperties.getProperty("metrics.fusion", "false").trim() );
+		metricsBatch = Boolean.parseBoolean( projectProperties.getProperty("metrics.batch.unionWith", "false").trim() );
+		queryOptimize = Boolean.parseBoolean( projectProperties.getProperty("query.optimize", "false").trim() );
+		inMemoryAggregation = Boolean.parseBoolean( projectProperties.getProperty("aggregation.inMemory", "false").trim() );
+		dirtyTracking = Boolean.parseBoolean( projectProperties.getProperty("dirty.tracking", "false").trim() );
 		this.evaluationDate = evaluationDate;
 	}
 	
@@ -66,9 +152,582 @@ public class EvalProject {
 	
 	public void run() {
 		
-		validateModel();
-		File metricQueryFolder = new File( projectFolder.getAbsolutePath() + File.separatorChar + "metrics" );
-		metricQuerySet = getQuerySet( metricQueryFolder ); 
+		open();
+		try {
+			Evaluation evaluation = evaluateMetrics();
+			evaluateModel( evaluation );
+			store( evaluation );
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * Evaluate evaluationDate using the query sets, connections and query executor of an opened EvalProject
+	 * (see forDate). The source queries of evaluationDate get a query budget of their own, so several
+	 * dates can be evaluated concurrently.
+	 */
+	void runOpened() {
+		mongodbSource = mongodbSource.withQueryBudget( QueryBudget.start(projectProperties, evaluationDate) );
+		Evaluation evaluation = evaluateMetrics();
+		evaluateModel( evaluation );
+		store( evaluation );
+	}
+	
+	/**
+	 * Execute the param and metric queries of evaluationDate (the query stage of an evaluation)
+	 * @return the Evaluation holding the computed metrics
+	 */
+	Evaluation evaluateMetrics() {
+		Evaluation evaluation = new Evaluation( evaluationDate );
+		if ( incremental ) {
+			evaluateMetricsIncremental( evaluation );
+			return evaluation;
+		}
+		
+		log.info("Executing param queries (" + paramQuerySet.size() + " found)\n");
+		Map<String,Object> queryParameter = executeParamQueryset( paramQuerySet, evaluationDate );
+		log.info("Param query result: " + queryParameter + "\n"); 
+
+		log.info("Executing metric queries (" + metricQuerySet.size() + " found)\n");
+		evaluation.metrics = executeMetricQueries(queryParameter, metricQuerySet);
+		return evaluation;
+	}
+	
+	/**
+	 * Compute the relations, factors and indicators of the evaluated metrics (the model stage of an evaluation).
+	 * Without 'aggregation.inMemory' factors and indicators are aggregated from the stored relations,
+	 * so metrics and relations are stored before the aggregation and their targetValue is set afterwards.
+	 * @param evaluation the Evaluation holding the computed metrics
+	 */
+	void evaluateModel( Evaluation evaluation ) {
+		Map<String,Factor> factorMap = readFactorMap();
+		Map<String,Indicator> indicatorMap = readIndicatorMap();
+		
+		evaluation.metricRelations = computeMetricRelations( evaluation.metrics, factorMap );
+		if ( !inMemoryAggregation ) {
+			if ( dirtyTracking ) {
+				markDirty( evaluation, projectProperties );
+				updateMetrics( evaluation, projectProperties );
+			} else {
+				storeMetrics( evaluation, projectProperties );
+				mongodbTarget.storeRelations( projectProperties, evaluation.metricRelations );
+			}
+		}
+		
+		log.info("Computing factors (" + factorMap.size() + " found)\n");
+		evaluation.factors = computeFactors( evaluation.metricRelations, factorMap );
+		if ( !inMemoryAggregation ) {
+			if ( dirtyTracking ) {
+				markDirtyFactors( evaluation, projectProperties );
+			}
+			mongodbTarget.updateTargetValues( projectProperties, evaluationDate, dirtyItems( evaluation.factors, evaluation.dirtyFactors ) );
+		}
+		evaluation.factorRelations = computeFactorRelations( evaluation.factors, indicatorMap );
+		if ( !inMemoryAggregation ) {
+			if ( dirtyTracking ) {
+				updateFactorRelations( evaluation, projectProperties );
+			} else {
+				mongodbTarget.storeRelations( projectProperties, evaluation.factorRelations );
+			}
+			evaluation.relationsStored = true;
+		}
+		
+		log.info("Computing indicators (" + indicatorMap.size() + " found)\n");
+		evaluation.indicators = computeIndicators( evaluation.factorRelations, indicatorMap );
+		if ( !inMemoryAggregation ) {
+			if ( dirtyTracking ) {
+				markDirtyIndicators( evaluation, projectProperties );
+			}
+			mongodbTarget.updateTargetValues( projectProperties, evaluationDate, dirtyItems( evaluation.indicators, evaluation.dirtyIndicators ) );
+		}
+	}
+	
+	/**
+	 * Compute the relations, factors and indicators of the evaluations of several evaluationDates in one pass
+	 * over the compiled quality model (see QualityModel). The relations are aggregated in memory.
+	 * @param evaluations Evaluations holding the computed metrics, each of a different evaluationDate
+	 */
+	void evaluateModel( List<Evaluation> evaluations ) {
+		QualityModel model = QualityModel.compile( getEnabledMetricQueries(), readFactorMap(), readIndicatorMap() );
+		int dates = evaluations.size();
+		
+		double[] metricValues = new double[model.getMetrics().length * dates];
+		Arrays.fill( metricValues, Double.NaN );
+		for ( int d = 0; d < dates; d++ ) {
+			for ( Metric metric : evaluations.get(d).metrics ) {
+				int row = model.getMetricRow( metric.getMetric() );
+				if ( row >= 0 ) metricValues[row * dates + d] = metric.getValue();
+			}
+		}
+		
+		String factorQueryDir = projectFolder.getAbsolutePath() + File.separatorChar + "factors";
+		QueryDef factorQuery = loadQueryDef(factorQueryDir, "factor");
+		String indicatorQueryDir = projectFolder.getAbsolutePath() + File.separatorChar + "indicators";
+		QueryDef indicatorQuery = loadQueryDef(indicatorQueryDir, "indicator");
+		
+		log.info("Propagating " + model.getMetrics().length + " metrics to " + model.getFactors().length + " factors and "
+			+ model.getIndicators().length + " indicators for " + dates + " evaluationDates\n");
+		QualityModel.Propagation propagation = model.propagate( metricValues, dates, factorQuery.getFormula(), indicatorQuery.getFormula(), formulaCompiled );
+		
+		for ( int d = 0; d < dates; d++ ) {
+			Evaluation evaluation = evaluations.get(d);
+			forDate( evaluation.evaluationDate ).fromPropagation( model, propagation, d, evaluation, factorQuery, indicatorQuery );
+		}
+	}
+	
+	/**
+	 * Create the relations, factors and indicators of evaluationDate from the results of a propagation
+	 * @param model the compiled quality model
+	 * @param propagation the results of the propagation
+	 * @param date column of evaluationDate in the propagation
+	 * @param evaluation the Evaluation of evaluationDate, receives the relations, factors and indicators
+	 * @param factorQuery definition of the factor formula
+	 * @param indicatorQuery definition of the indicator formula
+	 */
+	private void fromPropagation( QualityModel model, QualityModel.Propagation propagation, int date, Evaluation evaluation, QueryDef factorQuery, QueryDef indicatorQuery ) {
+		int dates = propagation.getDates();
+		Map<String,Factor> factorMap = readFactorMap();
+		Map<String,Indicator> indicatorMap = readIndicatorMap();
+		
+		Metric[] metrics = new Metric[model.getMetrics().length];
+		for ( Metric metric : evaluation.metrics ) {
+			int row = model.getMetricRow( metric.getMetric() );
+			if ( row >= 0 ) metrics[row] = metric;
+		}
+		
+		// relations target all enabled factors and indicators, dropped ones keep a null value
+		Factor[] factors = new Factor[model.getFactors().length];
+		evaluation.factors = new ArrayList<>();
+		for ( int row = 0; row < factors.length; row++ ) {
+			Factor fact = factorMap.get( model.getFactors()[row].getFactor() );
+			factors[row] = fact;
+			double value = propagation.getFactors().getValue(row, dates, date);
+			if ( Double.isNaN(value) ) {
+				log.warning("Factor " + fact.getFactor() + " is dropped.\n");
+				continue;
+			}
+			setPropagatedValue( fact, value, propagation.getFactors().getAggregation(row, dates, date), factorQuery );
+			evaluation.factors.add(fact);
+		}
+		
+		Indicator[] indicators = new Indicator[model.getIndicators().length];
+		evaluation.indicators = new ArrayList<>();
+		for ( int row = 0; row < indicators.length; row++ ) {
+			Indicator ind = indicatorMap.get( model.getIndicators()[row].getIndicator() );
+			indicators[row] = ind;
+			double value = propagation.getIndicators().getValue(row, dates, date);
+			if ( Double.isNaN(value) ) {
+				log.warning("Indicator " + ind.getIndicator() + " is dropped.\n");
+				continue;
+			}
+			setPropagatedValue( ind, value, propagation.getIndicators().getAggregation(row, dates, date), indicatorQuery );
+			evaluation.indicators.add(ind);
+		}
+		
+		evaluation.metricRelations = new ArrayList<>();
+		QualityModel.Csr factorWeights = model.getFactorWeights();
+		for ( int row = 0; row < factors.length; row++ ) {
+			for ( int k = factorWeights.rowStart[row]; k < factorWeights.rowStart[row + 1]; k++ ) {
+				Metric metric = metrics[ factorWeights.columns[k] ];
+				if ( metric == null ) continue;
+				double weight = factorWeights.values[k];
+				evaluation.metricRelations.add( new Relation(metric.getProject(), metric, factors[row], evaluationDate, metric.getValue() * weight, weight) );
+			}
+		}
+		
+		evaluation.factorRelations = new ArrayList<>();
+		QualityModel.Csr indicatorWeights = model.getIndicatorWeights();
+		for ( int row = 0; row < indicators.length; row++ ) {
+			for ( int k = indicatorWeights.rowStart[row]; k < indicatorWeights.rowStart[row + 1]; k++ ) {
+				Factor factor = factors[ indicatorWeights.columns[k] ];
+				if ( factor.getValue() == null ) continue;
+				double weight = indicatorWeights.values[k];
+				evaluation.factorRelations.add( new Relation(factor.getProject(), factor, indicators[row], evaluationDate, factor.getValue() * weight, weight) );
+			}
+		}
+	}
+	
+	private void setPropagatedValue( IndexItem item, double value, Map<String,Object> results, QueryDef query ) {
+		item.setValue(value);
+		item.setEvaluationDate(evaluationDate);
+		item.setInfo( getModelInfo( getModelParameters(item), query, results, value ) );
+	}
+	
+	/**
+	 * Get the parameters of the formula query of a Factor or Indicator
+	 * @param item the Factor or Indicator
+	 * @return the parameters evaluationDate, project, targetType and targetId
+	 */
+	private Map<String,Object> getModelParameters( IndexItem item ) {
+		Map<String,Object> parameters = new HashMap<>();
+		parameters.put( "evaluationDate", evaluationDate);
+		parameters.put( "project", projectProperties.getProperty("project.name") );
+		parameters.put( "targetType", item.getType() );
+		parameters.put( "targetId", item.getMongodbId() );
+		return parameters;
+	}
+	
+	/**
+	 * Build the info of a computed Factor or Indicator. Per-date evaluation and propagation build the same
+	 * info, the execution results are listed by name as their order depends on the aggregation.
+	 * @param parameters the parameters of the formula query
+	 * @param query the factor or indicator formula query
+	 * @param results the aggregated relations
+	 * @param value the computed value
+	 * @return the info
+	 */
+	private static String getModelInfo( Map<String,Object> parameters, QueryDef query, Map<String,Object> results, double value ) {
+		String info;
+		info = "parameters: " + parameters + "\n";
+		info += "query-properties: " + query.getQueryParameter().toString() + "\n";
+		info += "executionResults: " + new TreeMap<>(results).toString() + "\n";
+		info += "formula: " + query.getProperty("metric") + "\n";
+		info += "value: " + value;
+		return info;
+	}
+	
+	/**
+	 * Store the results of an evaluation not stored yet by evaluateModel (the store stage of an evaluation)
+	 * @param evaluation the evaluated Evaluation
+	 */
+	void store( Evaluation evaluation ) {
+		store( evaluation, projectProperties );
+	}
+	
+	/**
+	 * Store the results of an evaluation not stored yet by evaluateModel
+	 * @param evaluation the evaluated Evaluation
+	 * @param targetProperties properties naming the target collections (metrics.index, relations.index...)
+	 */
+	void store( Evaluation evaluation, Properties targetProperties ) {
+		store( evaluation, targetProperties, dirtyTracking );
+	}
+	
+	/**
+	 * Store the results of an evaluation not stored yet by evaluateModel
+	 * @param evaluation the evaluated Evaluation
+	 * @param targetProperties properties naming the target collections (metrics.index, relations.index...)
+	 * @param dirty rewrite only the items downstream of changed metrics, factors and indicators (see storeDirty),
+	 *   false to write all items of the evaluation
+	 */
+	void store( Evaluation evaluation, Properties targetProperties, boolean dirty ) {
+		if ( dirty ) {
+			storeDirty( evaluation, targetProperties );
+			return;
+		}
+		if ( !evaluation.relationsStored ) {
+			storeMetrics( evaluation, targetProperties );
+			log.info("Storing relations (" + (evaluation.metricRelations.size() + evaluation.factorRelations.size()) + " computed)\n");
+			mongodbTarget.storeRelations( targetProperties, evaluation.metricRelations );
+			mongodbTarget.storeRelations( targetProperties, evaluation.factorRelations );
+		}
+		log.info("Storing factors (" + evaluation.factors.size() + " computed)\n");
+		mongodbTarget.storeFactors( targetProperties, evaluationDate, evaluation.factors );
+		log.info("Storing indicators (" + evaluation.indicators.size() + " computed)\n");
+		mongodbTarget.storeIndicators( targetProperties, evaluationDate, evaluation.indicators );
+		
+		if ( evaluation.watermarks != null ) {
+			evaluation.watermarks.store( evaluationDate, evaluation.inputCollections );
+		}
+	}
+	
+	private void storeMetrics( Evaluation evaluation, Properties targetProperties ) {
+		log.info("Storing metrics (" + evaluation.metrics.size() + " computed)\n");
+		mongodbTarget.storeMetrics( targetProperties, evaluationDate, evaluation.metrics );
+	}
+	
+	/**
+	 * Store the results of an evaluation downstream of its changed metrics (see markDirty):
+	 * changed metrics, the factors and indicators they influence and the relations from or to these items
+	 * are rewritten, all other stored items of evaluationDate are left untouched.
+	 * @param evaluation the evaluated Evaluation
+	 * @param targetProperties properties naming the target collections
+	 */
+	private void storeDirty( Evaluation evaluation, Properties targetProperties ) {
+		if ( !evaluation.relationsStored ) {
+			markDirty( evaluation, targetProperties );
+			markDirtyFactors( evaluation, targetProperties );
+			markDirtyIndicators( evaluation, targetProperties );
+			updateMetrics( evaluation, targetProperties );
+			updateFactorRelations( evaluation, targetProperties );
+		}
+		
+		mongodbTarget.updateFactors( targetProperties, evaluationDate, evaluation.dirtyFactors, dirtyItems( evaluation.factors, evaluation.dirtyFactors ) );
+		mongodbTarget.updateIndicators( targetProperties, evaluationDate, evaluation.dirtyIndicators, dirtyItems( evaluation.indicators, evaluation.dirtyIndicators ) );
+		log.info("Dirty tracking: " + evaluation.dirtyMetrics.size() + " metrics, " + evaluation.dirtyFactors.size() + " factors and "
+			+ evaluation.dirtyIndicators.size() + " indicators rewritten (evaluationDate=" + evaluationDate + ")\n");
+		
+		if ( evaluation.watermarks != null ) {
+			evaluation.watermarks.store( evaluationDate, evaluation.inputCollections );
+		}
+	}
+	
+	/**
+	 * Determine the changed items of an evaluation: metrics whose value, factors or weights differ from the stored metric,
+	 * metrics not computed anymore, and the factors and indicators downstream of these metrics in the quality model
+	 * @param evaluation the Evaluation holding the computed metrics
+	 * @param targetProperties properties naming the target collections
+	 */
+	private void markDirty( Evaluation evaluation, Properties targetProperties ) {
+		Map<String,Document> storedMetrics = mongodbTarget.loadMetrics( targetProperties, evaluationDate );
+		Map<String,Factor> factorMap = readFactorMap();
+		
+		Set<String> dirtyMetrics = new HashSet<>();
+		Set<String> computed = new HashSet<>();
+		for ( Metric metric : evaluation.metrics ) {
+			computed.add( metric.getMetric() );
+			if ( changed( metric, storedMetrics.get(metric.getMetric()) ) ) {
+				dirtyMetrics.add( metric.getMetric() );
+			}
+		}
+		for ( String metric : storedMetrics.keySet() ) {
+			if ( !computed.contains(metric) ) dirtyMetrics.add(metric);
+		}
+		Set<String> dirtyFactors = ModelChecker.getInfluencedFactors( dirtyMetrics, metricQuerySet, factorMap );
+		
+		// removed metrics and changed factor lists: the factors stored with a metric are affected as well
+		for ( String metric : dirtyMetrics ) {
+			Document stored = storedMetrics.get(metric);
+			if ( stored != null && stored.get("factors") instanceof List ) {
+				for ( Object f : (List<?>) stored.get("factors") ) {
+					if ( factorMap.containsKey( String.valueOf(f) ) ) dirtyFactors.add( String.valueOf(f) );
+				}
+			}
+		}
+		
+		evaluation.dirtyMetrics = dirtyMetrics;
+		evaluation.dirtyFactors = dirtyFactors;
+		evaluation.dirtyIndicators = ModelChecker.getInfluencedIndicators( dirtyFactors, factorMap, readIndicatorMap() );
+		log.info("Dirty tracking: " + dirtyMetrics.size() + " of " + evaluation.metrics.size() + " metrics changed, "
+			+ dirtyFactors.size() + " factors and " + evaluation.dirtyIndicators.size() + " indicators affected (evaluationDate=" + evaluationDate + ")\n");
+	}
+	
+	/**
+	 * Add the factors whose recomputed value or definition (factors.properties, factor formula) differs from the
+	 * stored factor, and the factors not computed anymore, to the changed items; the indicators downstream of all
+	 * changed factors are affected
+	 * @param evaluation the Evaluation holding the computed factors
+	 * @param targetProperties properties naming the target collections
+	 */
+	private void markDirtyFactors( Evaluation evaluation, Properties targetProperties ) {
+		Map<String,Document> stored = mongodbTarget.loadFactors( targetProperties, Collections.singletonList(evaluationDate) )
+			.getOrDefault( evaluationDate, Collections.emptyMap() );
+		evaluation.dirtyFactors.addAll( changedItems( evaluation.factors, stored, "factor", FACTOR_FIELDS ) );
+		evaluation.dirtyIndicators.addAll( ModelChecker.getInfluencedIndicators( evaluation.dirtyFactors, readFactorMap(), readIndicatorMap() ) );
+	}
+	
+	/**
+	 * Add the indicators whose recomputed value or definition (indicators.properties, indicator formula) differs from
+	 * the stored indicator, and the indicators not computed anymore, to the changed items
+	 * @param evaluation the Evaluation holding the computed indicators
+	 * @param targetProperties properties naming the target collections
+	 */
+	private void markDirtyIndicators( Evaluation evaluation, Properties targetProperties ) {
+		Map<String,Document> stored = mongodbTarget.loadIndicators( targetProperties, Collections.singletonList(evaluationDate) )
+			.getOrDefault( evaluationDate, Collections.emptyMap() );
+		evaluation.dirtyIndicators.addAll( changedItems( evaluation.indicators, stored, "strategic_indicator", INDICATOR_FIELDS ) );
+	}
+	
+	/**
+	 * Get the ids of computed items differing from their stored version in one of the compared fields,
+	 * and of stored items not computed anymore
+	 * @param items the computed Factors or Indicators
+	 * @param stored the stored documents by id
+	 * @param idField the id field of the documents
+	 * @param fields the compared fields
+	 * @return ids of the changed items
+	 */
+	private static Set<String> changedItems( Collection<? extends IndexItem> items, Map<String,Document> stored, String idField, List<String> fields ) {
+		Set<String> result = new HashSet<>( stored.keySet() );
+		for ( IndexItem item : items ) {
+			Map<String,Object> computed = item.getMap();
+			String id = (String) computed.get(idField);
+			Document d = stored.get(id);
+			result.remove(id);
+			if ( d == null ) {
+				result.add(id);
+				continue;
+			}
+			for ( String field : fields ) {
+				if ( !Objects.equals( computed.get(field), d.get(field) ) ) {
+					result.add(id);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the Factors or Indicators among items with a changed id, all items if nothing is tracked
+	 */
+	private static <T extends IndexItem> List<T> dirtyItems( Collection<T> items, Set<String> dirty ) {
+		List<T> result = new ArrayList<>();
+		for ( T item : items ) {
+			String id = ( item instanceof Factor ) ? ((Factor) item).getFactor() : ((Indicator) item).getIndicator();
+			if ( dirty == null || dirty.contains(id) ) {
+				result.add(item);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Check whether a computed metric differs from its stored version (value, factors or weights)
+	 * @param metric the computed Metric
+	 * @param stored the stored metric document, null if not stored
+	 * @return true if the metric changed
+	 */
+	private static boolean changed( Metric metric, Document stored ) {
+		if ( stored == null || !(stored.get("value") instanceof Number) ) return true;
+		if ( Double.compare( metric.getValue(), ((Number) stored.get("value")).doubleValue() ) != 0 ) return true;
+		return !Arrays.asList( metric.getFactors() ).equals( stored.get("factors") )
+			|| !Arrays.asList( metric.getWeights() ).equals( stored.get("weights") );
+	}
+	
+	/**
+	 * Rewrite the changed metrics and the relations from changed metrics or to affected factors
+	 */
+	private void updateMetrics( Evaluation evaluation, Properties targetProperties ) {
+		List<Metric> metrics = new ArrayList<>();
+		for ( Metric m : evaluation.metrics ) {
+			if ( evaluation.dirtyMetrics.contains(m.getMetric()) ) metrics.add(m);
+		}
+		mongodbTarget.updateMetrics( targetProperties, evaluationDate, evaluation.dirtyMetrics, metrics );
+		updateRelations( evaluation.metricRelations, "metrics", evaluation.dirtyMetrics, "factors", evaluation.dirtyFactors, targetProperties );
+	}
+	
+	/**
+	 * Rewrite the relations from affected factors or to affected indicators
+	 */
+	private void updateFactorRelations( Evaluation evaluation, Properties targetProperties ) {
+		updateRelations( evaluation.factorRelations, "factors", evaluation.dirtyFactors, "indicators", evaluation.dirtyIndicators, targetProperties );
+	}
+	
+	private void updateRelations( List<Relation> relations, String sourceType, Set<String> sources, String targetType, Set<String> targets, Properties targetProperties ) {
+		Set<String> sourceIds = mongodbIds( sources );
+		Set<String> targetIds = mongodbIds( targets );
+		List<Relation> changed = new ArrayList<>();
+		for ( Relation r : relations ) {
+			if ( sourceIds.contains( r.getSource().getMongodbId() ) || targetIds.contains( r.getTarget().getMongodbId() ) ) {
+				changed.add(r);
+			}
+		}
+		mongodbTarget.updateRelations( targetProperties, evaluationDate, sourceType, sourceIds, targetType, targetIds, changed );
+	}
+	
+	/**
+	 * Get the mongodb ids (see IndexItem.getMongodbId) of items of this project and evaluationDate
+	 */
+	private Set<String> mongodbIds( Set<String> ids ) {
+		Set<String> result = new HashSet<>();
+		for ( String id : ids ) {
+			result.add( projectProperties.getProperty("project.name") + "-" + id + "-" + evaluationDate );
+		}
+		return result;
+	}
+	
+	/**
+	 * Evaluate metrics whose source collections changed since the last evaluation of evaluationDate.
+	 * Metrics whose source collections (own index and param query indexes) have unchanged watermarks
+	 * and whose definitions (metric query, param queries) are unchanged since the stored value was computed
+	 * are carried forward from the metrics stored for evaluationDate. The watermarks are stored
+	 * together with the evaluation.
+	 * @param evaluation the Evaluation receiving the computed and carried forward metrics
+	 */
+	private void evaluateMetricsIncremental( Evaluation evaluation ) {
+		Watermarks watermarks = new Watermarks( mongodbSource, mongodbTarget, projectProperties );
+		Map<String,Document> storedWatermarks = watermarks.loadStored( evaluationDate );
+		Map<String,Document> storedMetrics = mongodbTarget.loadMetrics( projectProperties, evaluationDate );
+		
+		List<String> inputCollections = new ArrayList<>();
+		Map<String,QueryDef> changedQueries = new HashMap<>();
+		List<Metric> carried = new ArrayList<>();
+		for ( Entry<String,QueryDef> e : getEnabledMetricQueries().entrySet() ) {
+			List<String> inputs = Watermarks.getInputCollections( e.getValue(), paramQuerySet );
+			for ( String input : inputs ) {
+				if ( !inputCollections.contains(input) ) inputCollections.add(input);
+			}
+			
+			Document stored = storedMetrics.get( e.getValue().getName() );
+			boolean sameDefinition = stored != null && getDefinitionFingerprint( e.getValue() ).equals( stored.getString("definitionFingerprint") );
+			if ( sameDefinition && stored.get("value") instanceof Number && watermarks.unchanged(storedWatermarks, inputs) ) {
+				carried.add( carryForwardMetric( e.getValue(), stored ) );
+			} else {
+				changedQueries.put( e.getKey(), e.getValue() );
+			}
+		}
+		log.info("Incremental evaluation: " + carried.size() + " metrics unchanged, " + changedQueries.size() + " metrics to compute\n");
+		
+		List<Metric> metrics = new ArrayList<>();
+		if ( !changedQueries.isEmpty() ) {
+			log.info("Executing param queries (" + paramQuerySet.size() + " found)\n");
+			Map<String,Object> queryParameter = executeParamQueryset( paramQuerySet, evaluationDate );
+			log.info("Param query result: " + queryParameter + "\n"); 
+			metrics.addAll( executeMetricQueries(queryParameter, changedQueries) );
+		}
+		metrics.addAll( carried );
+		
+		evaluation.metrics = metrics;
+		evaluation.watermarks = watermarks;
+		evaluation.inputCollections = inputCollections;
+	}
+	
+	/**
+	 * Create a Metric from its stored value, using the current definition of the metric
+	 * @param metricQueryDef the metric query
+	 * @param stored the stored metric document
+	 * @return the Metric
+	 */
+	private Metric carryForwardMetric( QueryDef metricQueryDef, Document stored ) {
+		Metric metric = storedMetric( metricQueryDef, stored );
+		log.info("Metric " + metricQueryDef.getName() + " = " + metric.getValue() + " (carried forward)\n");
+		return metric;
+	}
+	
+	/**
+	 * Create a Metric of evaluationDate from a stored metric document, using the current definition
+	 * (factors, weights...) of the metric
+	 * @param metricQueryDef the metric query
+	 * @param stored the stored metric document
+	 * @return the Metric
+	 */
+	Metric storedMetric( QueryDef metricQueryDef, Document stored ) {
+		String project = projectProperties.getProperty("project.name");
+		String[] factors = metricQueryDef.getPropertyAsStringArray("factors");
+		Double[] weights = metricQueryDef.getPropertyAsDoubleArray("weights");
+		String onError = metricQueryDef.getProperty("onError");
+		if ( onError == null ) {
+			onError = projectErrorStrategy;
+		}
+		Double value = ((Number) stored.get("value")).doubleValue();
+		
+		Metric m = new Metric(project, metricQueryDef.getName(), evaluationDate, factors, weights, metricQueryDef.getProperty("name"),
+			metricQueryDef.getProperty("description"), stored.getString("source"), value, stored.getString("info"), onError );
+		m.setDefinitionFingerprint( stored.getString("definitionFingerprint") );
+		return m;
+	}
+	
+	/**
+	 * Get the fingerprint of the definitions a metric value depends on: the metric query and all param queries
+	 * @param metricQueryDef the metric query
+	 * @return the fingerprint
+	 */
+	private String getDefinitionFingerprint( QueryDef metricQueryDef ) {
+		StringBuilder sb = new StringBuilder( metricQueryDef.getDefinitionFingerprint() );
+		for ( String key : new TreeSet<>( paramQuerySet.keySet() ) ) {
+			sb.append('\n').append( paramQuerySet.get(key).getDefinitionFingerprint() );
+		}
+		return MongoDB.sha256( sb.toString() );
+	}
+	
+	/**
+	 * Validate the quality model, load the query sets and connect to source and target MongoDB
+	 */
+	void open() {
+		
+		openTarget();
 
 		log.info("Connecting to MongoDB Source (" + projectProperties.getProperty("mongodb.source.ip") + ")\n");
 		mongodbSource = new MongoDB(
@@ -78,6 +737,31 @@ public class EvalProject {
 			Integer.parseInt(projectProperties.getProperty("mongodb.source.port")),
 			projectProperties.getProperty("mongodb.source.database")
 		);
+		mongodbSource.setQueryBudget( QueryBudget.start(projectProperties, evaluationDate) );
+		if ( reuseFingerprint ) {
+			sourceWatermarks = new Watermarks( mongodbSource, mongodbTarget, projectProperties );
+		}
+		
+		File paramQueryFolder = new File( projectFolder.getAbsolutePath() + File.separatorChar + "params" );
+		paramQuerySet = getQuerySet( paramQueryFolder ); 
+		
+		if ( queryConcurrency > 1 ) {
+			queryExecutor = Executors.newFixedThreadPool(queryConcurrency);
+		}
+		
+		if ( metricsFusion ) {
+			fusionGroups = getFusionGroups( getEnabledMetricQueries() );
+		}
+	}
+	
+	/**
+	 * Validate the quality model, load the metric query set and connect to the target MongoDB only
+	 */
+	void openTarget() {
+		
+		validateModel();
+		File metricQueryFolder = new File( projectFolder.getAbsolutePath() + File.separatorChar + "metrics" );
+		metricQuerySet = getQuerySet( metricQueryFolder ); 
 		
 		log.info("Connecting to MongoDB Target (" + projectProperties.getProperty("mongodb.target.ip") + ")\n");
 		mongodbTarget = new MongoDB(
@@ -87,31 +771,116 @@ public class EvalProject {
 				Integer.parseInt(projectProperties.getProperty("mongodb.target.port")),
 				projectProperties.getProperty("mongodb.target.database")
 		);
-		
-		File paramQueryFolder = new File( projectFolder.getAbsolutePath() + File.separatorChar + "params" );
-		paramQuerySet = getQuerySet( paramQueryFolder ); 
-		
-		log.info("Executing param queries (" + paramQuerySet.size() + " found)\n");
-		Map<String,Object> queryParameter = executeParamQueryset( paramQuerySet, evaluationDate );
-		log.info("Param query result: " + queryParameter + "\n"); 
-
-		log.info("Executing metric queries (" + metricQuerySet.size() + " found)\n");
-		List<Metric> metrics = executeMetricQueries(queryParameter, metricQuerySet);
-		log.info("Storing metrics (" + metrics.size() + " computed)\n");
-		mongodbTarget.storeMetrics( projectProperties, evaluationDate, metrics );
+		mongodbTarget.ensureTargetIndexes( projectProperties );
+	}
+	
+	/**
+	 * Group metric queries by source collection. Only collections queried by more than one metric query form a group.
+	 * @param enabledQueries metric queries, ordered by name
+	 * @return Map of index -> names of the metric queries on the index
+	 */
+	private Map<String,List<String>> getFusionGroups( Map<String,QueryDef> enabledQueries ) {
+		Map<String,List<String>> groups = new LinkedHashMap<>();
+		for ( Entry<String,QueryDef> e : enabledQueries.entrySet() ) {
+			groups.computeIfAbsent( e.getValue().getProperty("index"), k -> new ArrayList<>() ).add( e.getKey() );
+		}
+		groups.values().removeIf( keys -> keys.size() < 2 );
+		log.info("Metric queries fused per index: " + groups + "\n");
+		return groups;
+	}
+	
+	/**
+	 * Release the resources acquired by open()
+	 */
+	void close() {
+		if ( queryExecutor != null ) {
+			queryExecutor.shutdownNow();
+			queryExecutor = null;
+		}
+	}
+	
+	/**
+	 * Create an EvalProject for another evaluationDate sharing the loaded query sets,
+	 * MongoDB connections and query executor of this (opened) EvalProject.
+	 * @param evaluationDate the evaluationDate
+	 * @return the EvalProject for evaluationDate
+	 */
+	EvalProject forDate( String evaluationDate ) {
+		return new EvalProject(this, evaluationDate);
+	}
+	
+	private EvalProject( EvalProject other, String evaluationDate ) {
+		this.projectFolder = other.projectFolder;
+		this.projectProperties = other.projectProperties;
+		this.projectErrorStrategy = other.projectErrorStrategy;
+		this.queryConcurrency = other.queryConcurrency;
+		this.formulaCompiled = other.formulaCompiled;
+		this.incremental = other.incremental;
+		this.reuseFingerprint = other.reuseFingerprint;
+		this.sourceWatermarks = other.sourceWatermarks;
+		this.metricsFusion = other.metricsFusion;
+		this.fusionGroups = other.fusionGroups;
+		this.metricsBatch = other.metricsBatch;
+		this.queryOptimize = other.queryOptimize;
+		this.inMemoryAggregation = other.inMemoryAggregation;
+		this.dirtyTracking = other.dirtyTracking;
+		this.mongodbSource = other.mongodbSource;
+		this.mongodbTarget = other.mongodbTarget;
+		this.paramQuerySet = other.paramQuerySet;
+		this.metricQuerySet = other.metricQuerySet;
+		this.queryExecutor = other.queryExecutor;
+		this.evaluationDate = evaluationDate;
+	}
+	
+	String getEvaluationDate() {
+		return evaluationDate;
+	}
+	
+	File getProjectFolder() {
+		return projectFolder;
+	}
+	
+	Properties getProjectProperties() {
+		return projectProperties;
+	}
+	
+	MongoDB getMongodbSource() {
+		return mongodbSource;
+	}
+	
+	MongoDB getMongodbTarget() {
+		return mongodbTarget;
+	}
+	
+	Map<String,QueryDef> getParamQuerySet() {
+		return paramQuerySet;
+	}
+	
+	ExecutorService getQueryExecutor() {
+		return queryExecutor;
+	}
+	
+	boolean isInMemoryAggregation() {
+		return inMemoryAggregation;
 	}
 	
 
 	/**
-	 * Computes Factor values based on relation items
+	 * Computes Factor values based on relation items.
+	 * With 'aggregation.inMemory' the relations of the computed metrics are aggregated in memory,
+	 * otherwise the stored relations of all factors are aggregated by a single query (see MongoDB.aggregateRelations).
+	 * @param metricRelations relations of the computed metrics to the factors
+	 * @param factorMap the Factors of the quality model, targets of metricRelations
 	 * @return List of computed Factors
 	 */
-	private Collection<Factor> computeFactors() {
+	private Collection<Factor> computeFactors( List<Relation> metricRelations, Map<String,Factor> factorMap ) {
 		List<Factor> result = new ArrayList<>();
 		String factorQueryDir = projectFolder.getAbsolutePath() + File.separatorChar + "factors";
 		QueryDef factorQuery = loadQueryDef(factorQueryDir, "factor");
 		factorQuery.setIndex( factorQuery.getProperty("index") + "." + projectProperties.getProperty("project.name"));
-		Map<String,Factor> factorMap = readFactorMap();
+		Map<String,Map<String,Object>> aggregatedRelations = inMemoryAggregation
+			? aggregateRelations(metricRelations)
+			: mongodbTarget.aggregateRelations( factorQuery.getProperty("index"), projectProperties.getProperty("project.name"), evaluationDate, "factors" );
 		
 		for ( Entry<String,Factor> e : factorMap.entrySet() ) {
 			
@@ -122,18 +891,14 @@ public class EvalProject {
 			}
 			else log.info("Computing factor  " + fact.getFactor() + ".\n") ;
 
-			Map<String,Object> parameters = new HashMap<>();
-			parameters.put( "evaluationDate", evaluationDate);
-			parameters.put( "project", projectProperties.getProperty("project.name") );
-			parameters.put( "targetType", e.getValue().getType() );
-			parameters.put( "targetId", e.getValue().getMongodbId() );
+			Map<String,Object> parameters = getModelParameters( e.getValue() );
 			
-			Map<String,Object> results = mongodbTarget.execute(parameters, factorQuery);
+			Map<String,Object> results = getAggregatedRelations( aggregatedRelations, fact );
 			String metricDef = factorQuery.getProperty("metric");
 
 			Double factorValue;
 			try {
-				factorValue = evaluate( metricDef, results );
+				factorValue = evaluate( factorQuery.getFormula(), results );
 			} catch( RuntimeException rte ) {
 				log.warning("Evaluation of formula " + metricDef + " failed. \nFactor: " + fact.getName() + "\n");
 				if ( fact.onErrorSet0() ) {
@@ -161,14 +926,7 @@ public class EvalProject {
 			fact.setValue(factorValue);
 			fact.setEvaluationDate(evaluationDate);
 			
-			String info;
-			info = "parameters: " + parameters + "\n";
-			info += "query-properties: " + factorQuery.getQueryParameter().toString() + "\n";
-			info += "executionResults: " + results.toString() + "\n";
-			info += "formula: " + metricDef + "\n";
-			info += "value: " + factorValue;
-
-			fact.setInfo(info);
+			fact.setInfo( getModelInfo( parameters, factorQuery, results, factorValue ) );
 			result.add(fact);
 		}
 
@@ -178,11 +936,11 @@ public class EvalProject {
 	/**
 	 * Compute Relations between Factors and Indicators
 	 * @param factors evaluations to be computed
+	 * @param indicatorMap the Indicators of the quality model
 	 * @return List of Relation
 	 */
-	private List<Relation> computeFactorRelations( Collection<Factor> factors ) {
+	private List<Relation> computeFactorRelations( Collection<Factor> factors, Map<String,Indicator> indicatorMap ) {
 		List<Relation> result = new ArrayList<>();
-		Map<String,Indicator> indicatorMap = readIndicatorMap();
 		
 		for ( Factor factor : factors ) {
 			for ( int i = 0; i < factor.getIndicators().length; i++ ) {
@@ -207,15 +965,21 @@ public class EvalProject {
 	}
 	
 	/**
-	 * Compute Indicator values based on Factor-indicator relations
+	 * Compute Indicator values based on Factor-indicator relations.
+	 * With 'aggregation.inMemory' the relations of the computed factors are aggregated in memory,
+	 * otherwise the stored relations of all indicators are aggregated by a single query (see MongoDB.aggregateRelations).
+	 * @param factorRelations relations of the computed factors to the indicators
+	 * @param indicatorMap the Indicators of the quality model, targets of factorRelations
 	 * @return List of Indicator
 	 */
-	private Collection<Indicator> computeIndicators() {
+	private Collection<Indicator> computeIndicators( List<Relation> factorRelations, Map<String,Indicator> indicatorMap ) {
 		List<Indicator> result = new ArrayList<>();
 		String indicatorQueryDir = projectFolder.getAbsolutePath() + File.separatorChar + "indicators";
 		QueryDef indicatorQuery = loadQueryDef(indicatorQueryDir, "indicator");
 		indicatorQuery.setIndex(indicatorQuery.getProperty("index") + "." + projectProperties.getProperty("project.name"));
-		Map<String,Indicator> indicatorMap = readIndicatorMap();
+		Map<String,Map<String,Object>> aggregatedRelations = inMemoryAggregation
+			? aggregateRelations(factorRelations)
+			: mongodbTarget.aggregateRelations( indicatorQuery.getProperty("index"), projectProperties.getProperty("project.name"), evaluationDate, "indicators" );
 
 		for ( Entry<String,Indicator> e : indicatorMap.entrySet() ) {
 			Indicator ind = e.getValue();
@@ -226,18 +990,14 @@ public class EvalProject {
 				log.info("Computing indicator " + ind.getIndicator() + ".\n") ; 
 			}
 			
-			Map<String,Object> parameters = new HashMap<>();
-			parameters.put( "evaluationDate", evaluationDate);
-			parameters.put( "project", projectProperties.getProperty("project.name") );
-			parameters.put( "targetType", e.getValue().getType() );
-			parameters.put( "targetId", e.getValue().getMongodbId() );
+			Map<String,Object> parameters = getModelParameters( e.getValue() );
 			
-			Map<String,Object> results = mongodbTarget.execute(parameters, indicatorQuery);
+			Map<String,Object> results = getAggregatedRelations( aggregatedRelations, ind );
 			String metricDef = indicatorQuery.getProperty( "metric" );
 
 			Double indicatorValue;
 			try {
-				indicatorValue = evaluate( metricDef, results );
+				indicatorValue = evaluate( indicatorQuery.getFormula(), results );
 			} catch (RuntimeException rte) {
 				log.warning("Evaluation of formula " + metricDef + " failed.\nIndicator: " + ind.getName());
 				if ( ind.onErrorSet0() ) {
@@ -265,14 +1025,7 @@ public class EvalProject {
 			ind.setValue(indicatorValue);
 			ind.setEvaluationDate(evaluationDate);
 			
-			String info;
-			info = "parameters: " + parameters + "\n";
-			info += "query-properties: " + indicatorQuery.getQueryParameter().toString() + "\n";
-			info += "executionResults: " + results.toString() + "\n";
-			info += "formula: " + metricDef + "\n";
-			info += "value: " + indicatorValue;
-
-			ind.setInfo(info);
+			ind.setInfo( getModelInfo( parameters, indicatorQuery, results, indicatorValue ) );
 			result.add(ind);
 		}
 		
@@ -280,110 +1033,451 @@ public class EvalProject {
 	}
 
 	/**
-	 * Execute a Set of Queries
+	 * Aggregate relations per target like the factor and indicator queries do: the sum of the relation values
+	 * (valuesum), the sum of the relation weights (weightsum) and the number of relations (numberOfMetrics).
+	 * @param relations relations of one level of the quality model
+	 * @return Map of targetType/targetId -> aggregation results
+	 */
+	private Map<String,Map<String,Object>> aggregateRelations( List<Relation> relations ) {
+		Map<String,double[]> sums = new HashMap<>();
+		for ( Relation relation : relations ) {
+			IndexItem target = relation.getTarget();
+			double[] s = sums.computeIfAbsent( target.getType() + "/" + target.getMongodbId(), k -> new double[3] );
+			s[0] += relation.getValue();
+			s[1] += relation.getWeight();
+			s[2]++;
+		}
+		
+		Map<String,Map<String,Object>> result = new HashMap<>();
+		for ( Entry<String,double[]> e : sums.entrySet() ) {
+			result.put( e.getKey(), relationAggregation( e.getValue()[0], e.getValue()[1], (long) e.getValue()[2] ) );
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the aggregated relations of a target, a target without relations aggregates to zeros like an empty query result
+	 * @param aggregatedRelations result of aggregateRelations or MongoDB.aggregateRelations
+	 * @param target the Factor or Indicator
+	 * @return the aggregation results of the target
+	 */
+	private Map<String,Object> getAggregatedRelations( Map<String,Map<String,Object>> aggregatedRelations, IndexItem target ) {
+		Map<String,Object> results = aggregatedRelations.get( target.getType() + "/" + target.getMongodbId() );
+		return ( results != null ) ? results : relationAggregation( 0.0, 0.0, 0 );
+	}
+	
+	private static Map<String,Object> relationAggregation( double valuesum, double weightsum, long numberOfMetrics ) {
+		Map<String,Object> result = new HashMap<>();
+		result.put( "valuesum", valuesum );
+		result.put( "weightsum", weightsum );
+		result.put( "numberOfMetrics", numberOfMetrics );
+		return result;
+	}
+	
+	/**
+	 * Execute a Set of Queries.
+	 * Queries are considered in filename order, a query sees the results of the preceding queries.
+	 * With 'query.concurrency' greater than 1 a query only waits for the preceding queries producing
+	 * the parameters its template references, independent queries are executed concurrently.
 	 * @param querySets Map of QueryDef
 	 * @return Map of execution results Name -> Value
 	 */
 	private Map<String, Object> executeParamQueryset( Map<String, QueryDef> querySets, String evaluationDate ) {
 		Map<String,Object> allExecutionResults = new HashMap<>();
 		allExecutionResults.put("evaluationDate", evaluationDate);
+		
+		List<String> keys = new ArrayList<>( querySets.keySet() );
+		Collections.sort(keys);
 
-		for ( String key : querySets.keySet() ) {
-			Map<String,Object> executionResult = mongodbSource.execute( allExecutionResults, querySets.get(key) );
-			allExecutionResults.putAll(executionResult);
+		if ( queryExecutor == null ) {
+			for ( String key : keys ) {
+				Map<String,Object> executionResult = mongodbSource.execute( allExecutionResults, querySets.get(key) );
+				allExecutionResults.putAll(executionResult);
+			}
+			return allExecutionResults;
+		}
+		
+		Map<String,List<String>> dependencies = getParamDependencies( keys, querySets );
+		log.info("Param query dependencies: " + dependencies + "\n");
+		
+		Map<String,CompletableFuture<Map<String,Object>>> executions = new LinkedHashMap<>();
+		for ( String key : keys ) {
+			List<CompletableFuture<Map<String,Object>>> required = new ArrayList<>();
+			for ( String dependency : dependencies.get(key) ) {
+				required.add( executions.get(dependency) );
+			}
+			
+			CompletableFuture<Map<String,Object>> execution = CompletableFuture
+				.allOf( required.toArray(new CompletableFuture<?>[0]) )
+				.thenApplyAsync( v -> {
+					Map<String,Object> parameters = new HashMap<>();
+					parameters.put("evaluationDate", evaluationDate);
+					for ( CompletableFuture<Map<String,Object>> r : required ) {
+						parameters.putAll( r.join() );
+					}
+					return mongodbSource.execute( parameters, querySets.get(key) );
+				}, queryExecutor );
+			executions.put(key, execution);
+		}
+		
+		// merge in filename order, later results overwrite earlier ones as in sequential execution
+		for ( CompletableFuture<Map<String,Object>> execution : executions.values() ) {
+			allExecutionResults.putAll( awaitResult(execution) );
 		}
 		
 		return allExecutionResults;
 	}
 	
 	/**
-	 * Execute Metric queries
+	 * Build the dependency graph of param queries. A query depends on the last preceding query (in filename order)
+	 * declaring a result for a parameter referenced in its template. Parameters declared by the query itself
+	 * (param.*) don't create dependencies.
+	 * @param keys names of the param queries in filename order
+	 * @param querySets Map of QueryDef
+	 * @return Map of query name -> names of the queries it depends on
+	 */
+	private Map<String,List<String>> getParamDependencies( List<String> keys, Map<String,QueryDef> querySets ) {
+		Map<String,List<String>> dependencies = new LinkedHashMap<>();
+		Map<String,String> producers = new HashMap<>();
+		
+		for ( String key : keys ) {
+			QueryDef queryDef = querySets.get(key);
+			Map<String,Object> ownParameters = queryDef.getQueryParameter();
+			
+			List<String> required = new ArrayList<>();
+			for ( String parameter : queryDef.getTemplateParameters() ) {
+				String producer = producers.get(parameter);
+				if ( producer != null && !ownParameters.containsKey(parameter) && !required.contains(producer) ) {
+					required.add(producer);
+				}
+			}
+			// results of dependencies are merged in filename order
+			required.sort( Comparator.comparingInt(keys::indexOf) );
+			dependencies.put(key, required);
+			
+			for ( String result : queryDef.getResults().keySet() ) {
+				producers.put(result, key);
+			}
+		}
+		
+		return dependencies;
+	}
+	
+	/**
+	 * Execute Metric queries.
+	 * With 'query.concurrency' greater than 1 the queries are dispatched to the query executor,
+	 * the resulting Metrics are always returned in the order of the metric names.
+	 * With 'metrics.fusion' the queries of each fusion group are executed first (see executeFusedMetricQueries),
+	 * with 'metrics.batch.unionWith' the remaining queries are executed in one round trip (see MongoDB.executeBatch).
 	 * @param parameters Parameter Map
 	 * @param metricQuerySet Query Map
 	 * @return List of Metric
 	 */
 	private List<Metric> executeMetricQueries( Map<String,Object> parameters, Map<String, QueryDef> metricQuerySet) {
-		List<Metric> result = new ArrayList<>();
-
-		for ( String key : metricQuerySet.keySet() ) {
+		
+		Map<String,QueryDef> enabledQueries = getEnabledMetricQueries( metricQuerySet );
+		
+		Map<String,Map<String,Object>> executionResults = new HashMap<>();
+		Map<String,QueryDef> singleQueries = enabledQueries;
+		if ( fusionGroups != null ) {
+			executionResults.putAll( executeFusedMetricQueries(parameters, enabledQueries) );
+			singleQueries = new LinkedHashMap<>( enabledQueries );
+			singleQueries.keySet().removeAll( executionResults.keySet() );
+		}
+		
+		if ( metricsBatch && singleQueries.size() > 1 ) {
+			List<String> keys = new ArrayList<>();
+			List<QueryDef> queryDefs = new ArrayList<>();
+			List<List<BsonDocument>> pipelines = new ArrayList<>();
+			for ( Entry<String,QueryDef> e : singleQueries.entrySet() ) {
+				keys.add( e.getKey() );
+				queryDefs.add( e.getValue() );
+				pipelines.add( bindMetricQuery( e.getKey(), e.getValue(), parameters ) );
+			}
+			List<Map<String,Object>> results = mongodbSource.executeBatch( queryDefs, pipelines, evaluationDate );
+			for ( int i = 0; i < keys.size(); i++ ) {
+				log.info("Metric query " + keys.get(i) + " result: " + results.get(i) + "\n");
+				executionResults.put( keys.get(i), results.get(i) );
+			}
+			singleQueries = new LinkedHashMap<>();
+		}
+		
+		if ( queryExecutor == null ) {
+			for ( Entry<String,QueryDef> e : singleQueries.entrySet() ) {
+				executionResults.put( e.getKey(), executeMetricQuery(e.getKey(), e.getValue(), parameters) );
+			}
+		} else {
+			Map<String,Future<Map<String,Object>>> executions = new LinkedHashMap<>();
+			for ( Entry<String,QueryDef> e : singleQueries.entrySet() ) {
+				executions.put( e.getKey(), queryExecutor.submit( () -> executeMetricQuery(e.getKey(), e.getValue(), parameters) ) );
+			}
+			for ( Entry<String,Future<Map<String,Object>>> e : executions.entrySet() ) {
+				executionResults.put( e.getKey(), awaitResult(e.getValue()) );
+			}
+		}
+		
+		return buildMetrics( parameters, enabledQueries, executionResults );
+	}
+	
+	/**
+	 * Execute the metric queries of the fusion groups, each group as fused aggregations (see MongoDB.executeFused).
+	 * Fused queries are always executed (see bindMetricQuery).
+	 * @param parameters Parameter Map
+	 * @param enabledQueries metric queries to execute
+	 * @return Map of execution results of the metric queries in a fusion group
+	 */
+	private Map<String,Map<String,Object>> executeFusedMetricQueries( Map<String,Object> parameters, Map<String,QueryDef> enabledQueries ) {
+		Map<String,Map<String,Object>> executionResults = new HashMap<>();
+		for ( List<String> group : fusionGroups.values() ) {
+			List<String> keys = new ArrayList<>();
+			List<QueryDef> queryDefs = new ArrayList<>();
+			List<List<BsonDocument>> pipelines = new ArrayList<>();
+			for ( String key : group ) {
+				QueryDef metricQueryDef = enabledQueries.get(key);
+				if ( metricQueryDef == null ) continue;
+				keys.add(key);
+				queryDefs.add(metricQueryDef);
+				pipelines.add( bindMetricQuery(key, metricQueryDef, parameters) );
+			}
+			if ( keys.size() < 2 ) continue;
+			
+			List<Map<String,Object>> results = mongodbSource.executeFused( queryDefs, pipelines, evaluationDate );
+			for ( int i = 0; i < keys.size(); i++ ) {
+				log.info("Metric query " + keys.get(i) + " result: " + results.get(i) + "\n");
+				executionResults.put( keys.get(i), results.get(i) );
+			}
+		}
+		return executionResults;
+	}
+	
+	/**
+	 * Bind a metric query executed together with other queries. Such queries are always executed,
+	 * with 'reuse.fingerprint' their fingerprints are recorded for the Metrics.
+	 * @param key name of the metric query
+	 * @param metricQueryDef the metric query
+	 * @param parameters Parameter Map
+	 * @return the bound pipeline
+	 */
+	private List<BsonDocument> bindMetricQuery( String key, QueryDef metricQueryDef, Map<String,Object> parameters ) {
+		List<BsonDocument> pipeline = mongodbSource.bind( parameters, metricQueryDef );
+		if ( reuseFingerprint ) {
+			queryFingerprints.put( key, getQueryFingerprint( metricQueryDef, pipeline ) );
+		}
+		return pipeline;
+	}
+	
+	/**
+	 * Get the enabled metric queries
+	 * @param metricQuerySet Query Map
+	 * @return enabled metric queries, ordered by name
+	 */
+	Map<String,QueryDef> getEnabledMetricQueries( Map<String,QueryDef> metricQuerySet ) {
+		List<String> keys = new ArrayList<>( metricQuerySet.keySet() );
+		Collections.sort(keys);
+		
+		Map<String,QueryDef> enabledQueries = new LinkedHashMap<>();
+		for ( String key : keys ) {
 			QueryDef metricQueryDef = metricQuerySet.get(key);
 			if ( !metricQueryDef.isEnabled() ) {
 				log.info("Metric " + metricQueryDef.getName() + " is disabled.\n");
 				continue;
 			}
-			
-			String info;
-			info = "parameters: " + parameters.toString() + "\n";
-			info += "query-properties: " + metricQueryDef.getQueryParameter().toString() + "\n";
-			
+			enabledQueries.put(key, metricQueryDef);
+		}
+		return enabledQueries;
+	}
+	
+	Map<String,QueryDef> getEnabledMetricQueries() {
+		return getEnabledMetricQueries( metricQuerySet );
+	}
+	
+	/**
+	 * Compute the Metrics of the metric queries from their execution results
+	 * @param parameters Parameter Map
+	 * @param enabledQueries metric queries, ordered by name
+	 * @param executionResults execution results of the metric queries
+	 * @return List of Metric, in the order of enabledQueries
+	 */
+	List<Metric> buildMetrics( Map<String,Object> parameters, Map<String,QueryDef> enabledQueries, Map<String,Map<String,Object>> executionResults ) {
+		List<Metric> result = new ArrayList<>();
+		for ( Entry<String,QueryDef> e : enabledQueries.entrySet() ) {
+			Metric m = buildMetric( e.getKey(), e.getValue(), parameters, executionResults.get(e.getKey()) );
+			if ( m != null ) {
+				result.add(m);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Execute a single Metric query on the source MongoDB
+	 * @param key name of the metric query
+	 * @param metricQueryDef the metric query
+	 * @param parameters Parameter Map
+	 * @return Map of execution results Name -> Value
+	 */
+	private Map<String,Object> executeMetricQuery( String key, QueryDef metricQueryDef, Map<String,Object> parameters ) {
+		if ( reuseFingerprint ) {
+			return executeMetricQueryReusing( key, metricQueryDef, parameters );
+		}
+		
+		log.info("Executing metric query: " + key + "\n");
+		Map<String,Object> executionResult = mongodbSource.execute( parameters, metricQueryDef );
+		log.info("result: " + executionResult + "\n");
+		return executionResult;
+	}
+	
+	/**
+	 * Execute a single Metric query, reusing the result of an identical bound query. The result is reused
+	 * if the fingerprint of the bound query was already executed in this run or is stored with a metric
+	 * of another evaluationDate. The fingerprint includes the watermark of the source collection, so
+	 * stored results are not reused after the collection changed.
+	 * @param key name of the metric query
+	 * @param metricQueryDef the metric query
+	 * @param parameters Parameter Map
+	 * @return Map of execution results Name -> Value
+	 */
+	private Map<String,Object> executeMetricQueryReusing( String key, QueryDef metricQueryDef, Map<String,Object> parameters ) {
+		List<BsonDocument> pipeline = mongodbSource.bind( parameters, metricQueryDef );
+		String fingerprint = getQueryFingerprint( metricQueryDef, pipeline );
+		queryFingerprints.put( key, fingerprint );
+		
+		String reuseKey = projectProperties.getProperty("project.name") + "/" + metricQueryDef.getName() + "/" + fingerprint;
+		Map<String,Object> executionResult = reusableResults.get(reuseKey);
+		if ( executionResult != null ) {
+			log.info("Metric query " + key + ": reusing result of identical query executed in this run\n");
+			return executionResult;
+		}
+		
+		executionResult = mongodbTarget.findQueryResult( projectProperties, metricQueryDef.getName(), fingerprint );
+		if ( executionResult != null ) {
+			log.info("Metric query " + key + ": reusing stored result of identical query\n");
+		} else {
 			log.info("Executing metric query: " + key + "\n");
-			Map<String,Object> executionResult = mongodbSource.execute( parameters, metricQueryDef );
+			executionResult = mongodbSource.execute( metricQueryDef, pipeline, evaluationDate );
 			log.info("result: " + executionResult + "\n");
-			
-			info += "executionResults: " + executionResult.toString() + "\n";
-			String metricDef = metricQueryDef.getProperty("metric");
-			info += "formula: " + metricDef + "\n";
-			
-			Map<String,Object> evalParameters = new HashMap<>();
-			evalParameters.putAll(parameters);
-			evalParameters.putAll(executionResult);
-			
-			Double metricValue;
-			try {
-				metricValue = evaluate( metricDef, evalParameters );
-				info += "value: " + metricValue;
-			} catch (RuntimeException rte) {
-				log.warning("Evaluation of formula " + metricDef + " failed. \nMetric: " + key);
-				if ( metricQueryDef.onErrorDrop() ) {
-					log.warning("Metric " + key + " is dropped.");
-					continue;
-				} else {
-					metricValue = metricQueryDef.getErrorValue();
-					log.warning("Metric " + key + " set to " + metricValue + ".");
-				}
-			}
-			
-			log.info("Metric " + metricQueryDef.getName() +" = " + metricValue + "\n");
-			if( metricValue.isInfinite() || metricValue.isNaN() ) {
-				log.warning("Formula evaluated as NaN or inifinite.");
-				if ( metricQueryDef.onErrorDrop() ) {
-					log.warning("Metric " + key + " is dropped.");
-					continue;
-				} else {
-					metricValue = metricQueryDef.getErrorValue();
-					log.warning("Metric " + key + " set to " + metricValue + ".");
-				}
+		}
+		
+		// empty results of failed or cut queries are not reused
+		if ( !executionResult.isEmpty() ) {
+			reusableResults.put( reuseKey, executionResult );
+		}
+		return executionResult;
+	}
+	
+	/**
+	 * Get the fingerprint of a bound metric query: hash of the collection, the bound pipeline, the
+	 * current watermark of the collection (see Watermarks) and the definition of the metric, as the
+	 * stored result depends on its 'result.*' properties
+	 * @param metricQueryDef the metric query
+	 * @param pipeline the bound pipeline
+	 * @return hex encoded SHA-256 hash
+	 */
+	private String getQueryFingerprint( QueryDef metricQueryDef, List<BsonDocument> pipeline ) {
+		String index = metricQueryDef.getProperty("index");
+		return MongoDB.sha256( mongodbSource.fingerprint( index, pipeline ) + "\n" + sourceWatermarks.getCurrent(index).toJson()
+			+ "\n" + getDefinitionFingerprint( metricQueryDef ) );
+	}
+	
+	/**
+	 * Wait for a query submitted to the query executor. Failures of the query are rethrown
+	 * as they would have been thrown by a sequential execution.
+	 * @param future the submitted query
+	 * @return the result of the query
+	 */
+	static <T> T awaitResult( Future<T> future ) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for query execution", e);
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof RuntimeException ) {
+				throw (RuntimeException) e.getCause();
 			}
-			
-			String project = projectProperties.getProperty("project.name");
-			String metric = metricQueryDef.getName();
-			String name = metricQueryDef.getProperty("name");
-			String description = metricQueryDef.getProperty("description");
-			String[] factors = metricQueryDef.getPropertyAsStringArray("factors");
-			Double[] weights = metricQueryDef.getPropertyAsDoubleArray("weights");
-			String datasource = mongodbSource.getMongodbIP() + ":" + mongodbSource.getMongodbPort() +
-				"/" + mongodbSource.getMongodbDatabaseName() + "." + metricQueryDef.getProperty("index");
-		
-			String onError = metricQueryDef.getProperty("onError");
-			if ( onError == null ) {
-				onError = projectErrorStrategy;
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Compute the Metric of a metric query from its execution results
+	 * @param key name of the metric query
+	 * @param metricQueryDef the metric query
+	 * @param parameters Parameter Map
+	 * @param executionResult execution results of the metric query
+	 * @return the Metric, null if the Metric is dropped
+	 */
+	private Metric buildMetric( String key, QueryDef metricQueryDef, Map<String,Object> parameters, Map<String,Object> executionResult ) {
+		String info;
+		info = "parameters: " + parameters.toString() + "\n";
+		info += "query-properties: " + metricQueryDef.getQueryParameter().toString() + "\n";
+		info += "executionResults: " + executionResult.toString() + "\n";
+		String metricDef = metricQueryDef.getProperty("metric");
+		info += "formula: " + metricDef + "\n";
+		
+		Map<String,Object> evalParameters = new HashMap<>();
+		evalParameters.putAll(parameters);
+		evalParameters.putAll(executionResult);
+		
+		Double metricValue;
+		try {
+			metricValue = evaluate( metricQueryDef.getFormula(), evalParameters );
+			info += "value: " + metricValue;
+		} catch (RuntimeException rte) {
+			log.warning("Evaluation of formula " + metricDef + " failed. \nMetric: " + key);
+			if ( metricQueryDef.onErrorDrop() ) {
+				log.warning("Metric " + key + " is dropped.");
+				return null;
+			} else {
+				metricValue = metricQueryDef.getErrorValue();
+				log.warning("Metric " + key + " set to " + metricValue + ".");
 			}
+		}
 		
-			Metric m = new Metric(project, metric, evaluationDate, factors, weights, name, description, datasource, metricValue, info, onError );
-			result.add(m);
+		log.info("Metric " + metricQueryDef.getName() +" = " + metricValue + "\n");
+		if( metricValue.isInfinite() || metricValue.isNaN() ) {
+			log.warning("Formula evaluated as NaN or inifinite.");
+			if ( metricQueryDef.onErrorDrop() ) {
+				log.warning("Metric " + key + " is dropped.");
+				return null;
+			} else {
+				metricValue = metricQueryDef.getErrorValue();
+				log.warning("Metric " + key + " set to " + metricValue + ".");
+			}
 		}
 		
-		return result;
+		String project = projectProperties.getProperty("project.name");
+		String metric = metricQueryDef.getName();
+		String name = metricQueryDef.getProperty("name");
+		String description = metricQueryDef.getProperty("description");
+		String[] factors = metricQueryDef.getPropertyAsStringArray("factors");
+		Double[] weights = metricQueryDef.getPropertyAsDoubleArray("weights");
+		String datasource = mongodbSource.getMongodbIP() + ":" + mongodbSource.getMongodbPort() +
+			"/" + mongodbSource.getMongodbDatabaseName() + "." + metricQueryDef.getProperty("index");
+	
+		String onError = metricQueryDef.getProperty("onError");
+		if ( onError == null ) {
+			onError = projectErrorStrategy;
+		}
+	
+		Metric m = new Metric(project, metric, evaluationDate, factors, weights, name, description, datasource, metricValue, info, onError );
+		m.setDefinitionFingerprint( getDefinitionFingerprint(metricQueryDef) );
+		String fingerprint = queryFingerprints.get(key);
+		if ( fingerprint != null ) {
+			m.setQueryResult( fingerprint, executionResult );
+		}
+		return m;
 	}
 	
 	/**
 	 * Compute relations between (enabled) Metrics and Factors
 	 * @param metrics evaluations to be computed
+	 * @param factorMap the Factors of the quality model
 	 * @return List of Relation
 	 */
-	private List<Relation> computeMetricRelations( List<Metric> metrics ) {
+	private List<Relation> computeMetricRelations( List<Metric> metrics, Map<String,Factor> factorMap ) {
 		List<Relation> result = new ArrayList<>();
-		Map<String,Factor> factorMap = readFactorMap();
 		
 		for ( Metric metric : metrics ) {
 			for ( int i = 0; i < metric.getFactors().length; i++ ) {
@@ -491,14 +1585,22 @@ public class EvalProject {
 
 	/**
 	 * Evaluate metric formula for given named parameters
-	 * @param metric query to be executed
-	 * @param evalParameters parameters to introduce into the query
+	 * @param formula parsed formula of the metric
+	 * @param evalParameters values of the variables used in the formula
 	 * @return value of the evaluated metric
 	 */
-	private Double evaluate(String metric, Map<String, Object> evalParameters) {
-		for ( String key : evalParameters.keySet() )
-			metric = metric.replaceAll( key, evalParameters.get(key).toString() );
-		double res = Evaluator.eval(metric);
+	private Double evaluate(Formula formula, Map<String, Object> evalParameters) {
+		double res;
+		if ( formulaCompiled ) {
+			double[] slots = formulaSlots.get();
+			if ( slots.length < formula.getVariableCount() ) {
+				slots = new double[ formula.getVariableCount() ];
+				formulaSlots.set(slots);
+			}
+			res = Evaluator.compile(formula).apply( formula.bind(evalParameters, slots) );
+		} else {
+			res = formula.evaluate(evalParameters);
+		}
 		return Math.min(res, 1.0);
 	}
 
@@ -540,6 +1642,12 @@ public class EvalProject {
 			}
 		}
 		
+		if ( queryOptimize ) {
+			for ( QueryDef queryDef : querySets.values() ) {
+				queryDef.optimizeTemplate();
+			}
+		}
+		
 		return querySets;
 	}
 	
@@ -563,4 +1671,33 @@ public class EvalProject {
 		return doubleArray;
 	}
 
+	/**
+	 * Results of the evaluation of a project for an evaluationDate, passed from stage to stage
+	 * (evaluateMetrics, evaluateModel, store)
+	 */
+	static class Evaluation {
+		final String evaluationDate;
+		List<Metric> metrics;
+		List<Relation> metricRelations;
+		Collection<Factor> factors;
+		List<Relation> factorRelations;
+		Collection<Indicator> indicators;
+		
+		// metrics and relations stored by evaluateModel
+		boolean relationsStored;
+		
+		// with 'dirty.tracking': ids of the changed metrics and of the factors and indicators downstream of them
+		Set<String> dirtyMetrics;
+		Set<String> dirtyFactors;
+		Set<String> dirtyIndicators;
+		
+		// watermarks of the source collections of an incremental evaluation, stored with the evaluation
+		Watermarks watermarks;
+		List<String> inputCollections;
+		
+		Evaluation( String evaluationDate ) {
+			this.evaluationDate = evaluationDate;
+		}
+	}
+
 }
@@ -0,0 +1,166 @@
+package eval2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Evaluation of a project for a range of consecutive evaluationDates.
+ * Each param and metric query is executed once for the whole range (see MongoDB.executeRange),
+ * the per-date results are fanned out to the formula evaluation, the quality model and storage of each date.
+ * The project.properties options 'incremental', 'reuse.fingerprint', 'metrics.fusion' and 'metrics.batch.unionWith'
+ * don't apply to ranges, and params queries are executed one after another regardless of 'query.concurrency';
+ * configured options are reported by a warning.
+ */
+public class EvalRange {
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	// Project folder containing queries, properties etc.
+	private final File projectFolder;
+
+	// evaluationDates of the range
+	private final List<String> evaluationDates;
+
+	// project.properties options of single date evaluations not applied to ranges
+	private static final List<String> IGNORED_OPTIONS = Arrays.asList("incremental", "reuse.fingerprint", "metrics.fusion", "metrics.batch.unionWith");
+
+	public EvalRange( File projectFolder, List<String> evaluationDates ) {
+		this.projectFolder = projectFolder;
+		this.evaluationDates = evaluationDates;
+	}
+
+	public void run() {
+
+		EvalProject base = new EvalProject( projectFolder, evaluationDates.get(0) );
+		base.open();
+		warnIgnoredOptions( base.getProjectProperties() );
+		try {
+			MongoDB mongodbSource = base.getMongodbSource();
+			String range = evaluationDates.get(0) + ".." + evaluationDates.get(evaluationDates.size() - 1);
+			// the metric queries cover all dates at once, the range gets the deadline of each date
+			mongodbSource.setQueryBudget( QueryBudget.start(base.getProjectProperties(), range, evaluationDates.size()) );
+
+			log.info("Executing param queries for " + evaluationDates.size() + " evaluationDates\n");
+			List<Map<String,Object>> parameters = executeParamQuerysetRange( mongodbSource, base.getParamQuerySet() );
+
+			Map<String,QueryDef> enabledQueries = base.getEnabledMetricQueries();
+			log.info("Executing metric queries (" + enabledQueries.size() + " enabled) for " + evaluationDates.size() + " evaluationDates\n");
+			Map<String,List<Map<String,Object>>> executionResults = executeMetricQueriesRange( mongodbSource, base.getQueryExecutor(), parameters, enabledQueries );
+
+			List<EvalProject.Evaluation> evaluations = new ArrayList<>();
+			for ( int i = 0; i < evaluationDates.size(); i++ ) {
+				EvalProject day = base.forDate( evaluationDates.get(i) );
+
+				Map<String,Map<String,Object>> dayResults = new HashMap<>();
+				for ( Entry<String,List<Map<String,Object>>> e : executionResults.entrySet() ) {
+					dayResults.put( e.getKey(), e.getValue().get(i) );
+				}
+
+				EvalProject.Evaluation evaluation = new EvalProject.Evaluation( day.getEvaluationDate() );
+				evaluation.metrics = day.buildMetrics( parameters.get(i), enabledQueries, dayResults );
+				evaluations.add( evaluation );
+			}
+
+			// relations aggregated in memory: factors and indicators of the whole range in one propagation
+			if ( base.isInMemoryAggregation() ) {
+				base.evaluateModel( evaluations );
+			}
+			for ( EvalProject.Evaluation evaluation : evaluations ) {
+				EvalProject day = base.forDate( evaluation.evaluationDate );
+				if ( !base.isInMemoryAggregation() ) {
+					day.evaluateModel( evaluation );
+				}
+				day.store( evaluation );
+			}
+		} finally {
+			base.close();
+		}
+	}
+
+	/**
+	 * Log a warning naming the configured options that range evaluation doesn't apply
+	 * @param projectProperties the project properties
+	 */
+	private void warnIgnoredOptions( Properties projectProperties ) {
+		List<String> ignored = new ArrayList<>();
+		for ( String option : IGNORED_OPTIONS ) {
+			if ( Boolean.parseBoolean( projectProperties.getProperty(option, "false").trim() ) ) {
+				ignored.add(option);
+			}
+		}
+		if ( Integer.parseInt( projectProperties.getProperty("query.concurrency", "1").trim() ) > 1 ) {
+			ignored.add("query.concurrency (params queries)");
+		}
+		if ( !ignored.isEmpty() ) {
+			log.warning("Range evaluation (eval.range.size) ignores the options " + ignored + " of project folder " + projectFolder.getName() + "\n");
+		}
+	}
+
+	/**
+	 * Execute the param queries for all evaluationDates. Queries are executed in filename order,
+	 * each query sees the results of the preceding queries of the same date.
+	 * @param mongodbSource the source MongoDB
+	 * @param querySets Map of QueryDef
+	 * @return Map of execution results Name -> Value for each evaluationDate
+	 */
+	private List<Map<String,Object>> executeParamQuerysetRange( MongoDB mongodbSource, Map<String,QueryDef> querySets ) {
+		List<Map<String,Object>> allExecutionResults = new ArrayList<>();
+		for ( String evaluationDate : evaluationDates ) {
+			Map<String,Object> parameters = new HashMap<>();
+			parameters.put("evaluationDate", evaluationDate);
+			allExecutionResults.add(parameters);
+		}
+
+		List<String> keys = new ArrayList<>( querySets.keySet() );
+		Collections.sort(keys);
+
+		for ( String key : keys ) {
+			List<Map<String,Object>> executionResults = mongodbSource.executeRange( allExecutionResults, querySets.get(key) );
+			for ( int i = 0; i < evaluationDates.size(); i++ ) {
+				allExecutionResults.get(i).putAll( executionResults.get(i) );
+			}
+		}
+
+		return allExecutionResults;
+	}
+
+	/**
+	 * Execute the metric queries for all evaluationDates, concurrently if a query executor is given
+	 * @param mongodbSource the source MongoDB
+	 * @param queryExecutor executor for concurrent queries, null for sequential execution
+	 * @param parameters parameters of each evaluationDate
+	 * @param enabledQueries metric queries to execute
+	 * @return Map of metric query name -> execution results of each evaluationDate
+	 */
+	private Map<String,List<Map<String,Object>>> executeMetricQueriesRange( MongoDB mongodbSource, ExecutorService queryExecutor,
+			List<Map<String,Object>> parameters, Map<String,QueryDef> enabledQueries ) {
+
+		Map<String,List<Map<String,Object>>> executionResults = new LinkedHashMap<>();
+		if ( queryExecutor == null ) {
+			for ( Entry<String,QueryDef> e : enabledQueries.entrySet() ) {
+				executionResults.put( e.getKey(), mongodbSource.executeRange( parameters, e.getValue() ) );
+			}
+		} else {
+			Map<String,Future<List<Map<String,Object>>>> executions = new LinkedHashMap<>();
+			for ( Entry<String,QueryDef> e : enabledQueries.entrySet() ) {
+				executions.put( e.getKey(), queryExecutor.submit( () -> mongodbSource.executeRange( parameters, e.getValue() ) ) );
+			}
+			for ( Entry<String,Future<List<Map<String,Object>>>> e : executions.entrySet() ) {
+				executionResults.put( e.getKey(), EvalProject.awaitResult(e.getValue()) );
+			}
+		}
+		return executionResults;
+	}
+
+}
@@ -1,5 +1,6 @@
 package eval2;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -73,4 +74,42 @@ public class ModelChecker {
 		
 	}
 
+	/**
+	 * Get the factors downstream of a set of metrics: the (defined) factors listed under 'factors' in their metric.properties
+	 * @param metrics ids of the metrics
+	 * @param metricQueries the metric queries
+	 * @param factorMap the factors of factor.properties
+	 * @return ids of the influenced factors
+	 */
+	public static Set<String> getInfluencedFactors(Collection<String> metrics, Map<String,QueryDef> metricQueries, Map<String, Factor> factorMap) {
+		Set<String> result = new HashSet<>();
+		for ( String m : metrics ) {
+			QueryDef qd = metricQueries.get(m);
+			if ( qd == null ) continue;
+			for ( String f : qd.getPropertyAsStringArray("factors") ) {
+				if ( factorMap.containsKey(f) ) result.add(f);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the indicators downstream of a set of factors: the (defined) indicators listed under 'indicators' in factor.properties
+	 * @param factors ids of the factors
+	 * @param factorMap the factors of factor.properties
+	 * @param indicatorMap the indicators of indicator.properties
+	 * @return ids of the influenced indicators
+	 */
+	public static Set<String> getInfluencedIndicators(Collection<String> factors, Map<String, Factor> factorMap, Map<String, Indicator> indicatorMap) {
+		Set<String> result = new HashSet<>();
+		for ( String f : factors ) {
+			Factor fact = factorMap.get(f);
+			if ( fact == null ) continue;
+			for ( String i : fact.getIndicators() ) {
+				if ( indicatorMap.containsKey(i) ) result.add(i);
+			}
+		}
+		return result;
+	}
+
 }
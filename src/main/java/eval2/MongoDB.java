@@ -1,23 +1,35 @@
 package eval2;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.mongodb.MongoClientSettings;
 import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateManyModel;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 
+import org.bson.BsonArray;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
 import org.bson.BsonInt64;
+import org.bson.BsonString;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
@@ -36,6 +48,25 @@ public class MongoDB {
     private final String mongodbPassword;
     private final String mongodbDatabase;
 
+    // Time budget of the queries executed by execute() and its variants
+    private volatile QueryBudget budget = QueryBudget.UNLIMITED;
+
+    // Stages that can't be used within a $facet stage
+    private static final List<String> FACET_EXCLUDED_STAGES = Arrays.asList(
+        "$collStats", "$facet", "$geoNear", "$indexStats", "$out", "$merge", "$planCacheStats", "$search");
+
+    // Stages that must be the last stage of a pipeline
+    private static final List<String> FINAL_STAGES = Arrays.asList("$out", "$merge");
+
+    // Batch size of aggregations reading the first document only, see searchFirst()
+    private static final int FIRST_DOCUMENT_BATCH_SIZE = 2;
+
+    // Error code of MongoDB for operations exceeding maxTimeMS
+    private static final int MAX_TIME_EXPIRED = 50;
+
+    // Field tagging the documents of a batch with the name of their QueryDef, see executeBatch()
+    private static final String BATCH_TAG = "_queryDef";
+
     private static final Map<String, MongoClient> clientCache = new HashMap<>();
     private static final Map<String, MongoDatabase> databaseCache = new HashMap<>();
 
@@ -56,42 +87,70 @@ public class MongoDB {
         this.mongodbPort = mongodbPort;
         this.mongodbDatabase = mongodbDatabase;
 
-        if (clientCache.containsKey(mongodbIP) && databaseCache.containsKey(mongodbDatabase)) {
-            log.info("Using cached MongoClient and MongoDatabase.\n");
-            client = clientCache.get(mongodbIP);
-            database = databaseCache.get(mongodbDatabase);
-            return;
-        }
+        // projects are evaluated concurrently, creation of cached clients must not race
+        synchronized (clientCache) {
+            if (clientCache.containsKey(mongodbIP) && databaseCache.containsKey(mongodbDatabase)) {
+                log.info("Using cached MongoClient and MongoDatabase.\n");
+                client = clientCache.get(mongodbIP);
+                database = databaseCache.get(mongodbDatabase);
+                return;
+            }
 
-        Logger mongodbLogger = Logger.getLogger("org.mongodb.driver");
-        mongodbLogger.setLevel(Level.WARNING);
+            Logger mongodbLogger = Logger.getLogger("org.mongodb.driver");
+            mongodbLogger.setLevel(Level.WARNING);
 
-        String connectionString;
-        if (mongodbUser == null || mongodbUser.isEmpty()
-                || mongodbPassword == null || mongodbPassword.isEmpty()) {
-            connectionString = "mongodb://" + mongodbIP + ":" + mongodbPort;
-        }
-        else {
-            connectionString = "mongodb://" + mongodbUser + ":"
-                + mongodbPassword + "@" + mongodbIP + ":" + mongodbPort;
-        }
-        client = MongoClients.create(connectionString);
-        database = client.getDatabase(mongodbDatabase);
+            String connectionString;
+            if (mongodbUser == null || mongodbUser.isEmpty()
+                    || mongodbPassword == null || mongodbPassword.isEmpty()) {
+                connectionString = "mongodb://" + mongodbIP + ":" + mongodbPort;
+            }
+            else {
+                connectionString = "mongodb://" + mongodbUser + ":"
+                    + mongodbPassword + "@" + mongodbIP + ":" + mongodbPort;
+            }
+            client = MongoClients.create(connectionString);
+            database = client.getDatabase(mongodbDatabase);
 
-        try {
-            Bson command = new BsonDocument("ping", new BsonInt64(1));
-            database.runCommand(command);
-            System.out.println("Successfully connected to MongoDB");
-            clientCache.put(mongodbIP, client);
-            databaseCache.put(mongodbDatabase, database);
-        } catch (MongoException e) {
-            e.printStackTrace();
-            System.err.println("Error connecting to to MongoDB");
-            System.exit(1);
+            try {
+                Bson command = new BsonDocument("ping", new BsonInt64(1));
+                database.runCommand(command);
+                System.out.println("Successfully connected to MongoDB");
+                clientCache.put(mongodbIP, client);
+                databaseCache.put(mongodbDatabase, database);
+            } catch (MongoException e) {
+                e.printStackTrace();
+                System.err.println("Error connecting to to MongoDB");
+                System.exit(1);
+            }
         }
 
     }
 
+    public void setQueryBudget(QueryBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get a MongoDB sharing the connection of this one with a query budget of its own,
+     * for evaluations of several dates running concurrently
+     * @param budget the query budget
+     * @return the MongoDB using budget
+     */
+    public MongoDB withQueryBudget(QueryBudget budget) {
+        return new MongoDB(this, budget);
+    }
+
+    private MongoDB(MongoDB other, QueryBudget budget) {
+        this.mongodbUser = other.mongodbUser;
+        this.mongodbPassword = other.mongodbPassword;
+        this.mongodbIP = other.mongodbIP;
+        this.mongodbPort = other.mongodbPort;
+        this.mongodbDatabase = other.mongodbDatabase;
+        this.client = other.client;
+        this.database = other.database;
+        this.budget = budget;
+    }
+
     public MongoClient getClient() {
         return client;
     }
@@ -133,20 +192,372 @@ public class MongoDB {
             + "External parameters: " + externalParameters + "\n"
             + "Query parameters: " + queryDef.getQueryParameter() + "\n");
 
-        Map<String,Object> execParams = new HashMap<>();
-        execParams.putAll(externalParameters);
-        execParams.putAll(queryDef.getQueryParameter());
+        return execute(queryDef, bind(externalParameters, queryDef), (String) externalParameters.get("evaluationDate"));
+    }
 
-        List<Document> sr = search(queryDef.getQueryTemplate(), queryDef.getProperty("index"), execParams);
-        Map<String,Object> executionResult = new HashMap<>();
-        Map<String,String> queryResults = queryDef.getResults();
+    /**
+     * Execute QueryDef with a pipeline bound by bind()
+     * @param queryDef the queryDef to execute
+     * @param pipeline the bound pipeline of the queryDef
+     * @param evaluationDate the evaluationDate the pipeline is bound to, null if unknown
+     * @return a map containing the key-value (property-responseValue) pairs of the results
+     */
+    public Map<String,Object> execute( QueryDef queryDef, List<BsonDocument> pipeline, String evaluationDate ) {
+        List<Document> sr;
+        try {
+            sr = searchFirst(queryDef.getProperty("index"), pipeline, evaluationDate, queryDef.getHint(), maxTimeMS(queryDef));
+        } catch (MongoExecutionTimeoutException e) {
+            cut(queryDef.getName(), e);
+            return new HashMap<>();
+        }
 
         if (sr == null) {
             log.warning("QueryDef " + queryDef.getName() + " failed.\n");
-            return executionResult;
+            return new HashMap<>();
         }
 
         log.info("MongoDB response: " + sr);
+        return toExecutionResult(queryDef, sr);
+    }
+
+    /**
+     * Bind the template of a QueryDef to external parameters and its own query parameters
+     * @param externalParameters additional parameters derived by i.e. param-queries
+     * @param queryDef the queryDef
+     * @return the bound aggregation pipeline
+     */
+    public List<BsonDocument> bind( Map<String,Object> externalParameters, QueryDef queryDef ) {
+        Map<String,Object> execParams = new HashMap<>();
+        execParams.putAll(externalParameters);
+        execParams.putAll(queryDef.getQueryParameter());
+        return queryDef.getCompiledTemplate().bind(execParams);
+    }
+
+    /**
+     * Fingerprint of a bound aggregation: equal fingerprints denote the same aggregation
+     * on the same collection of this database.
+     * @param index the index the aggregation runs on
+     * @param pipeline the bound aggregation pipeline
+     * @return hex encoded SHA-256 hash
+     */
+    public String fingerprint( String index, List<BsonDocument> pipeline ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mongodbDatabase).append('.').append(index);
+        for (BsonDocument stage : pipeline) {
+            sb.append('\n').append(stage.toJson());
+        }
+        return sha256(sb.toString());
+    }
+
+    /**
+     * @param text the text to hash
+     * @return the hex encoded SHA-256 hash of text
+     */
+    static String sha256( String text ) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Execute QueryDef for a range of evaluation dates in a single aggregation.
+     * The pipeline bound for each date becomes a sub-pipeline of a $facet stage. If all pipelines
+     * start with a $match stage, the disjunction of these stages is matched before the $facet,
+     * so the collection is scanned once and indexes can be used.
+     * QueryDefs using stages not allowed in $facet are executed once per date.
+     * Dates with a result in the ResultStore are not aggregated again. The aggregation gets the time limit
+     * of the QueryDef once per aggregated date; if it is cut anyway, the dates are executed one by one.
+     * @param externalParameters additional parameters for each date
+     * @param queryDef the queryDef to execute
+     * @return the results for each date, in the order of externalParameters
+     */
+    public List<Map<String,Object>> executeRange( List<Map<String,Object>> externalParameters, QueryDef queryDef ) {
+
+        log.info("Executing QueryDef " + queryDef.getName() + " for " + externalParameters.size() + " dates\n"
+            + "Index: " + queryDef.getProperty("index") + "\n"
+            + "Query parameters: " + queryDef.getQueryParameter() + "\n");
+
+        List<List<BsonDocument>> pipelines = new ArrayList<>();
+        for (Map<String,Object> external : externalParameters) {
+            pipelines.add(bind(external, queryDef));
+        }
+
+        String index = queryDef.getProperty("index");
+        List<Map<String,Object>> results = new ArrayList<>();
+        if (!facetCompatible(pipelines)) {
+            log.info("QueryDef " + queryDef.getName() + " can't be executed as $facet, executing per date.\n");
+            for (Map<String,Object> external : externalParameters) {
+                results.add(execute(external, queryDef));
+            }
+            return results;
+        }
+
+        // results of stored dates, null for dates to aggregate
+        ResultStore store = ResultStore.getInstance();
+        List<List<Document>> dateResults = new ArrayList<>();
+        List<String> fingerprints = new ArrayList<>();
+        for (int i = 0; i < pipelines.size(); i++) {
+            String evaluationDate = (String) externalParameters.get(i).get("evaluationDate");
+            String fingerprint = store.isStored(index, evaluationDate) ? fingerprint(index, pipelines.get(i)) : null;
+            fingerprints.add(fingerprint);
+            dateResults.add(fingerprint == null ? null : store.get(index, fingerprint));
+        }
+
+        BsonDocument facets = new BsonDocument();
+        Set<BsonDocument> prefilters = new LinkedHashSet<>();
+        boolean allMatch = true;
+        for (int i = 0; i < pipelines.size(); i++) {
+            if (dateResults.get(i) != null) continue;
+            List<BsonDocument> pipeline = pipelines.get(i);
+            BsonArray facet = new BsonArray(pipeline);
+            facet.add(new BsonDocument("$limit", new BsonInt32(1)));
+            facets.put("d" + i, facet);
+
+            if (!pipeline.isEmpty() && pipeline.get(0).containsKey("$match")) {
+                prefilters.add(pipeline.get(0).getDocument("$match"));
+            } else {
+                allMatch = false;
+            }
+        }
+
+        if (facets.isEmpty()) {
+            log.info("QueryDef " + queryDef.getName() + ": results of all dates read from result store\n");
+        } else {
+            try {
+                aggregateFacets(index, facets, prefilters, allMatch, queryDef.getHint(), maxTimeMS(queryDef, facets.size()), dateResults, fingerprints);
+            } catch (MongoExecutionTimeoutException e) {
+                log.warning("QueryDef " + queryDef.getName() + " cut for " + facets.size() + " dates: " + e.getMessage()
+                    + ", executing per date.\n");
+            }
+        }
+
+        for (int i = 0; i < dateResults.size(); i++) {
+            List<Document> dateResult = dateResults.get(i);
+            if (dateResult == null) {
+                // the range aggregation was cut, each date gets its own time limit
+                results.add(execute(queryDef, pipelines.get(i), (String) externalParameters.get(i).get("evaluationDate")));
+            } else {
+                results.add(toExecutionResult(queryDef, dateResult));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the $facet aggregation of executeRange() and store the result of each facet
+     * @param index the index to run the aggregation on
+     * @param facets the sub-pipelines, named d&lt;i&gt; for the i-th date
+     * @param prefilters the first $match stages of the sub-pipelines
+     * @param allMatch true if all sub-pipelines start with a $match stage
+     * @param hint index hint of the aggregation, null for no hint
+     * @param maxTimeMS time limit of the aggregation, 0 for no limit
+     * @param dateResults results of each date, filled with the facet results
+     * @param fingerprints fingerprints of the dates kept in the ResultStore, null for other dates
+     */
+    private void aggregateFacets(String index, BsonDocument facets, Set<BsonDocument> prefilters, boolean allMatch, Bson hint, long maxTimeMS,
+            List<List<Document>> dateResults, List<String> fingerprints) {
+        List<BsonDocument> rangePipeline = new ArrayList<>();
+        if (allMatch && !prefilters.isEmpty()) {
+            BsonDocument prefilter = (prefilters.size() == 1)
+                ? prefilters.iterator().next()
+                : new BsonDocument("$or", new BsonArray(new ArrayList<>(prefilters)));
+            rangePipeline.add(new BsonDocument("$match", prefilter));
+        }
+        rangePipeline.add(new BsonDocument("$facet", facets));
+
+        List<Document> sr = aggregate(index, rangePipeline, false, hint, maxTimeMS);
+        Document facetResult = sr.isEmpty() ? new Document() : sr.get(0);
+        for (int i = 0; i < dateResults.size(); i++) {
+            if (!facets.containsKey("d" + i)) continue;
+            List<Document> dateResult = facetResult.getList("d" + i, Document.class, new ArrayList<>());
+            dateResults.set(i, dateResult);
+            if (fingerprints.get(i) != null) {
+                ResultStore.getInstance().put(index, fingerprints.get(i), dateResult);
+            }
+        }
+    }
+
+    /**
+     * Execute QueryDefs on the same index fused into single aggregations. Pipelines starting with the same
+     * $match stage and declaring the same hint are executed as one aggregation: the $match stage runs once,
+     * the remaining stages of each pipeline become a sub-pipeline of a $facet stage. Pipelines without a shared $match stage or
+     * with stages not allowed in $facet are executed separately.
+     * @param queryDefs the queryDefs, all on the same index
+     * @param pipelines the bound pipelines of the queryDefs
+     * @param evaluationDate the evaluationDate the pipelines are bound to, null if unknown
+     * @return the results of each queryDef, in the order of queryDefs
+     */
+    public List<Map<String,Object>> executeFused( List<QueryDef> queryDefs, List<List<BsonDocument>> pipelines, String evaluationDate ) {
+        List<Map<String,Object>> results = new ArrayList<>(Collections.nCopies(queryDefs.size(), (Map<String,Object>) null));
+
+        // pipelines sharing their first $match stage and hint: [$match, hint] -> positions in queryDefs
+        Map<List<BsonDocument>,List<Integer>> partitions = new LinkedHashMap<>();
+        for (int i = 0; i < pipelines.size(); i++) {
+            List<BsonDocument> pipeline = pipelines.get(i);
+            if (!pipeline.isEmpty() && pipeline.get(0).containsKey("$match")
+                    && facetCompatible(Collections.singletonList(pipeline))) {
+                partitions.computeIfAbsent(Arrays.asList(pipeline.get(0), queryDefs.get(i).getHint()), k -> new ArrayList<>()).add(i);
+            } else {
+                results.set(i, execute(queryDefs.get(i), pipeline, evaluationDate));
+            }
+        }
+
+        for (Map.Entry<List<BsonDocument>,List<Integer>> partition : partitions.entrySet()) {
+            List<Integer> members = partition.getValue();
+            if (members.size() == 1) {
+                int i = members.get(0);
+                results.set(i, execute(queryDefs.get(i), pipelines.get(i), evaluationDate));
+                continue;
+            }
+
+            BsonDocument facets = new BsonDocument();
+            List<String> names = new ArrayList<>();
+            List<QueryDef> memberDefs = new ArrayList<>();
+            for (int i : members) {
+                memberDefs.add(queryDefs.get(i));
+                List<BsonDocument> pipeline = pipelines.get(i);
+                BsonArray facet = new BsonArray(pipeline.subList(1, pipeline.size()));
+                facet.add(new BsonDocument("$limit", new BsonInt32(1)));
+                facets.put("q" + i, facet);
+                names.add(queryDefs.get(i).getName());
+            }
+
+            String index = queryDefs.get(members.get(0)).getProperty("index");
+            log.info("Executing QueryDefs " + names + " fused on index " + index + "\n");
+            List<BsonDocument> fusedPipeline = Arrays.asList(
+                new BsonDocument("$match", partition.getKey().get(0).getDocument("$match")),
+                new BsonDocument("$facet", facets));
+            List<Document> sr;
+            try {
+                sr = search(index, fusedPipeline, evaluationDate, false, partition.getKey().get(1), maxTimeMS(memberDefs));
+            } catch (MongoExecutionTimeoutException e) {
+                cut(names.toString(), e);
+                sr = null;
+            }
+
+            Document facetResult = (sr == null || sr.isEmpty()) ? new Document() : sr.get(0);
+            for (int i : members) {
+                if (sr == null) {
+                    log.warning("QueryDef " + queryDefs.get(i).getName() + " failed.\n");
+                    results.set(i, new HashMap<>());
+                } else {
+                    results.set(i, toExecutionResult(queryDefs.get(i), facetResult.getList("q" + i, Document.class, new ArrayList<>())));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Execute QueryDefs on different indexes of this database in a single round trip. The pipeline of the first
+     * QueryDef runs on its index, the pipelines of the other QueryDefs are appended as $unionWith stages.
+     * The first document of each pipeline is tagged with the name of its QueryDef, the tagged documents
+     * are mapped back to the results of their QueryDefs.
+     * Pipelines with stages excluded from $facet (a superset of those excluded from $unionWith)
+     * and pipelines on indexes that don't exist are executed separately, as are QueryDefs declaring a hint,
+     * which can't be applied to the pipelines of a $unionWith. Batches are not
+     * kept in the ResultStore, as their indexes may have different immutability.
+     * @param queryDefs the queryDefs, with unique names
+     * @param pipelines the bound pipelines of the queryDefs
+     * @param evaluationDate the evaluationDate the pipelines are bound to, null if unknown
+     * @return the results of each queryDef, in the order of queryDefs
+     */
+    public List<Map<String,Object>> executeBatch( List<QueryDef> queryDefs, List<List<BsonDocument>> pipelines, String evaluationDate ) {
+        List<Map<String,Object>> results = new ArrayList<>(Collections.nCopies(queryDefs.size(), (Map<String,Object>) null));
+
+        // $unionWith on a missing collection returns no documents, such QueryDefs fail separately like unbatched ones
+        List<String> collections = database.listCollectionNames().into(new ArrayList<>());
+        List<Integer> members = new ArrayList<>();
+        for (int i = 0; i < pipelines.size(); i++) {
+            if (facetCompatible(Collections.singletonList(pipelines.get(i))) && collections.contains(queryDefs.get(i).getProperty("index"))
+                    && queryDefs.get(i).getHint() == null) {
+                members.add(i);
+            } else {
+                results.set(i, execute(queryDefs.get(i), pipelines.get(i), evaluationDate));
+            }
+        }
+        if (members.size() == 1) {
+            int i = members.get(0);
+            results.set(i, execute(queryDefs.get(i), pipelines.get(i), evaluationDate));
+        }
+        if (members.size() < 2) return results;
+
+        List<BsonDocument> batchPipeline = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<QueryDef> memberDefs = new ArrayList<>();
+        for (int i : members) {
+            QueryDef queryDef = queryDefs.get(i);
+            memberDefs.add(queryDef);
+            List<BsonDocument> tagged = new ArrayList<>(pipelines.get(i));
+            tagged.add(new BsonDocument("$limit", new BsonInt32(1)));
+            tagged.add(new BsonDocument("$addFields", new BsonDocument(BATCH_TAG, new BsonString(queryDef.getName()))));
+            if (batchPipeline.isEmpty()) {
+                batchPipeline.addAll(tagged);
+            } else {
+                batchPipeline.add(new BsonDocument("$unionWith", new BsonDocument("coll", new BsonString(queryDef.getProperty("index")))
+                    .append("pipeline", new BsonArray(tagged))));
+            }
+            names.add(queryDef.getName());
+        }
+
+        String index = queryDefs.get(members.get(0)).getProperty("index");
+        log.info("Executing QueryDefs " + names + " batched, starting on index " + index + "\n");
+        List<Document> sr;
+        try {
+            sr = aggregate(index, batchPipeline, false, null, maxTimeMS(memberDefs));
+        } catch (MongoExecutionTimeoutException e) {
+            cut(names.toString(), e);
+            sr = null;
+        }
+
+        Map<String,List<Document>> byName = new HashMap<>();
+        if (sr != null) {
+            for (Document d : sr) {
+                byName.computeIfAbsent(d.getString(BATCH_TAG), k -> new ArrayList<>()).add(d);
+            }
+        }
+        for (int i : members) {
+            if (sr == null) {
+                log.warning("QueryDef " + queryDefs.get(i).getName() + " failed.\n");
+                results.set(i, new HashMap<>());
+            } else {
+                results.set(i, toExecutionResult(queryDefs.get(i), byName.getOrDefault(queryDefs.get(i).getName(), new ArrayList<>())));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Check that pipelines can be used as sub-pipelines of a $facet stage
+     * @param pipelines the bound pipelines
+     * @return true if no pipeline uses a stage not allowed in $facet
+     */
+    private boolean facetCompatible(List<List<BsonDocument>> pipelines) {
+        for (List<BsonDocument> pipeline : pipelines) {
+            for (BsonDocument stage : pipeline) {
+                for (String operator : stage.keySet()) {
+                    if (FACET_EXCLUDED_STAGES.contains(operator)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Map the first document of an aggregation result to the results declared by a QueryDef
+     * @param queryDef the executed QueryDef
+     * @param sr the aggregation result
+     * @return a map containing the key-value (property-responseValue) pairs of the results
+     */
+    private Map<String,Object> toExecutionResult(QueryDef queryDef, List<Document> sr) {
+        Map<String,Object> executionResult = new HashMap<>();
+        Map<String,String> queryResults = queryDef.getResults();
+
         for ( Map.Entry<String,String> e : queryResults.entrySet() ) {
             if (sr.size() == 0) executionResult.put(e.getKey(), 0);
             else {
@@ -166,22 +577,230 @@ public class MongoDB {
      * @return a list of Documents containing the query result
      */
     public List<Document> search(String template, String index, Map<String,Object> params) {
-        String queryString = "{ \"pipeline\": " + template + "}";
+        return search(index, QueryTemplate.compile(template).bind(params));
+    }
+
+    /**
+     * Perform an aggregation bound to an evaluationDate. If the index is immutable before a date later than
+     * evaluationDate, the result is read from or written to the ResultStore.
+     * @param index the index to run the aggregation on
+     * @param pipeline the bound aggregation pipeline
+     * @param evaluationDate the evaluationDate the pipeline is bound to, null if unknown
+     * @return a list of Documents containing the query result
+     */
+    public List<Document> search(String index, List<BsonDocument> pipeline, String evaluationDate) {
+        return search(index, pipeline, evaluationDate, false, null, 0);
+    }
+
+    /**
+     * Perform an aggregation bound to an evaluationDate whose first document is used only.
+     * A $limit stage of two documents is appended and the result is read by a cursor with a small
+     * batch size that is closed after the first document. If the aggregation returned more
+     * than one document, a warning is logged.
+     * @param index the index to run the aggregation on
+     * @param pipeline the bound aggregation pipeline
+     * @param evaluationDate the evaluationDate the pipeline is bound to, null if unknown
+     * @param hint index hint of the aggregation, null for no hint
+     * @param maxTimeMS time limit of the aggregation, 0 for no limit
+     * @return a list containing the first Document of the query result, if any
+     * @throws MongoExecutionTimeoutException if the aggregation exceeded maxTimeMS
+     */
+    public List<Document> searchFirst(String index, List<BsonDocument> pipeline, String evaluationDate, Bson hint, long maxTimeMS) {
+        for (BsonDocument stage : pipeline) {
+            for (String operator : stage.keySet()) {
+                if (FINAL_STAGES.contains(operator)) return search(index, pipeline, evaluationDate, false, hint, maxTimeMS);
+            }
+        }
+        List<BsonDocument> limited = new ArrayList<>(pipeline);
+        limited.add(new BsonDocument("$limit", new BsonInt32(FIRST_DOCUMENT_BATCH_SIZE)));
+        // the result is stored under the fingerprint of the bound pipeline, as by executeRange()
+        return search(index, limited, pipeline, evaluationDate, true, hint, maxTimeMS);
+    }
+
+    private List<Document> search(String index, List<BsonDocument> pipeline, String evaluationDate, boolean firstDocument, Bson hint, long maxTimeMS) {
+        return search(index, pipeline, pipeline, evaluationDate, firstDocument, hint, maxTimeMS);
+    }
+
+    /**
+     * Perform an aggregation, reading and writing the ResultStore for stored collections and evaluationDates
+     * @param index the index to run the aggregation on
+     * @param pipeline the aggregation pipeline to execute
+     * @param boundPipeline the bound pipeline before any $limit appended for execution, identifies the stored result
+     * @param evaluationDate the evaluationDate the pipeline is bound to, null if unknown
+     * @param firstDocument read the first document only
+     * @param hint index hint of the aggregation, null for no hint
+     * @param maxTimeMS time limit of the aggregation, 0 for no limit
+     * @return a list of Documents containing the query result
+     */
+    private List<Document> search(String index, List<BsonDocument> pipeline, List<BsonDocument> boundPipeline, String evaluationDate,
+            boolean firstDocument, Bson hint, long maxTimeMS) {
+        ResultStore store = ResultStore.getInstance();
+        if (!store.isStored(index, evaluationDate)) {
+            return aggregate(index, pipeline, firstDocument, hint, maxTimeMS);
+        }
+
+        String fingerprint = fingerprint(index, boundPipeline);
+        List<Document> result = store.get(index, fingerprint);
+        if (result == null) {
+            result = aggregate(index, pipeline, firstDocument, hint, maxTimeMS);
+            if (result != null) store.put(index, fingerprint, result);
+        }
+        return result;
+    }
+
+    /**
+     * Perform an aggregation in the MongoDB database. Results are taken from the QueryCache if enabled,
+     * concurrent identical aggregations are executed once (see SingleFlight).
+     * @param index the index to run the aggregation on
+     * @param pipeline the bound aggregation pipeline
+     * @return a list of Documents containing the query result
+     */
+    public List<Document> search(String index, List<BsonDocument> pipeline) {
+        return aggregate(index, pipeline, false, null, 0);
+    }
+
+    private List<Document> aggregate(String index, List<BsonDocument> pipeline, boolean firstDocument, Bson hint, long maxTimeMS) {
+        String server = mongodbIP + ":" + mongodbPort;
+        // callers with another hint or time limit neither share the execution nor the cached result
+        String options = "hint=" + (hint == null ? "" : hint.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson())
+            + ";maxTimeMS=" + maxTimeMS;
+        return QueryCache.getInstance().get(server, database, index, pipeline, options,
+            () -> SingleFlight.getInstance().execute(server, database, index, pipeline, options, () -> {
+                collectionExists(index);
+                AggregateIterable<Document> aggregation = database.getCollection(index).aggregate(pipeline);
+                if (hint != null) {
+                    aggregation.hint(hint);
+                }
+                if (maxTimeMS > 0) {
+                    aggregation.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+                }
+                return firstDocument ? readFirst(index, aggregation) : aggregation.into(new ArrayList<>());
+            }));
+    }
+
+    /**
+     * Get the time limit of a query from the query budget
+     * @param queryDef the query, null for the project default
+     * @return the time limit in milliseconds, 0 for no limit
+     * @throws MongoExecutionTimeoutException if the deadline of the evaluation has passed
+     */
+    private long maxTimeMS(QueryDef queryDef) {
+        return maxTimeMS(queryDef, 1);
+    }
+
+    /**
+     * Get the time limit of a query covering several evaluationDates from the query budget
+     * @param queryDef the query
+     * @param dates number of evaluationDates covered
+     * @return the time limit in milliseconds, 0 for no limit
+     * @throws MongoExecutionTimeoutException if the deadline of the evaluation has passed
+     */
+    private long maxTimeMS(QueryDef queryDef, int dates) {
+        long maxTime = budget.getMaxTimeMS(queryDef, dates);
+        if (maxTime < 0) {
+            throw new MongoExecutionTimeoutException(MAX_TIME_EXPIRED, "evaluation deadline exceeded");
+        }
+        return maxTime;
+    }
+
+    /**
+     * Get the time limit of an aggregation combining several queries: the largest time limit of the queries,
+     * no limit if one of them has none
+     * @param queryDefs the combined queries
+     * @return the time limit in milliseconds, 0 for no limit
+     * @throws MongoExecutionTimeoutException if the deadline of the evaluation has passed
+     */
+    private long maxTimeMS(List<QueryDef> queryDefs) {
+        long maxTime = 0;
+        for (QueryDef queryDef : queryDefs) {
+            long m = maxTimeMS(queryDef);
+            if (m == 0) return 0;
+            maxTime = Math.max(maxTime, m);
+        }
+        return maxTime;
+    }
+
+    private void cut(String queryName, MongoExecutionTimeoutException e) {
+        log.warning("QueryDef " + queryName + " cut: " + e.getMessage() + "\n");
+        budget.cut(queryName, e.getMessage());
+    }
+
+    /**
+     * Read the first document of an aggregation and close its cursor
+     * @param index the index the aggregation runs on
+     * @param aggregation the aggregation
+     * @return a list containing the first document, empty if the aggregation returned no document
+     */
+    private List<Document> readFirst(String index, AggregateIterable<Document> aggregation) {
+        List<Document> result = new ArrayList<>();
+        try (MongoCursor<Document> cursor = aggregation.batchSize(FIRST_DOCUMENT_BATCH_SIZE).iterator()) {
+            if (cursor.hasNext()) {
+                result.add(cursor.next());
+            }
+            if (cursor.hasNext()) {
+                log.warning("Aggregation on " + index + " returned more than one document, only the first one is used.\n");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Explain an aggregation with verbosity 'executionStats'. The aggregation is executed by the server,
+     * its results are discarded.
+     * @param index the index to run the aggregation on
+     * @param pipeline the bound aggregation pipeline
+     * @param hint index hint of the aggregation, null for no hint
+     * @return the explain output
+     */
+    public Document explain(String index, List<BsonDocument> pipeline, Bson hint) {
         collectionExists(index);
-        MongoCollection<Document> collection = database.getCollection(index);
-        for (Map.Entry<String, Object> entry : params.entrySet())
-            queryString = queryString.replace("{{" + entry.getKey() + "}}", String.valueOf(entry.getValue()));
+        Document aggregate = new Document("aggregate", index)
+            .append("pipeline", pipeline)
+            .append("cursor", new Document());
+        if (hint != null) {
+            aggregate.append("hint", hint);
+        }
+        return database.runCommand(new Document("explain", aggregate).append("verbosity", "executionStats"));
+    }
+
+    /**
+     * Aggregate the stored relations of an evaluation per target in a single aggregation: the sum of the
+     * relation values (valuesum), the sum of the relation weights (weightsum) and the number of relations
+     * (numberOfMetrics). The aggregation bypasses the query cache, relations are written by the evaluation.
+     * @param relationsIndex the relations collection
+     * @param project the project name
+     * @param evaluationDate the evaluationDate
+     * @param targetType type of the targets (factors, indicators)
+     * @return Map of targetType/targetId -> aggregation results
+     */
+    public Map<String,Map<String,Object>> aggregateRelations(String relationsIndex, String project, String evaluationDate, String targetType) {
+        List<Document> pipeline = Arrays.asList(
+            new Document("$match", new Document("project", project)
+                .append("evaluationDate", evaluationDate)
+                .append("targetType", targetType)),
+            new Document("$group", new Document("_id", "$targetId")
+                .append("valuesum", new Document("$sum", "$value"))
+                .append("weightsum", new Document("$sum", "$weight"))
+                .append("numberOfMetrics", new Document("$sum", 1))));
 
-        Document parsedQuery = Document.parse(queryString);
-        List<Document> pipeline = parsedQuery.getList("pipeline", Document.class);
-        return collection.aggregate(pipeline).into(new ArrayList<>());
+        Map<String,Map<String,Object>> result = new HashMap<>();
+        collectionExists(relationsIndex);
+        for (Document d : database.getCollection(relationsIndex).aggregate(pipeline)) {
+            Map<String,Object> sums = new HashMap<>();
+            sums.put("valuesum", d.get("valuesum"));
+            sums.put("weightsum", d.get("weightsum"));
+            sums.put("numberOfMetrics", d.get("numberOfMetrics"));
+            result.put(targetType + "/" + d.get("_id"), sums);
+        }
+        log.info("Aggregated relations of " + result.size() + " " + targetType + " (evaluationDate=" + evaluationDate + ").\n");
+        return result;
     }
 
     public void storeMetrics(Properties projectProperties, String evaluationDate, Collection<Metric> metrics) {
         String projectName = projectProperties.getProperty("project.name");
         String metricIndex = projectProperties.getProperty("metrics.index") + "." + projectName;
         String relationsIndex = projectProperties.getProperty("relations.index") + "." + projectName;
-        checkCreateIndex(metricIndex, Schemas.METRICS_SCHEMA);
+        checkCreateIndex(metricIndex, Schemas.METRICS_SCHEMA, Schemas.METRICS_INDEXES);
 
         long deletedMetrics = deleteCurrentEvaluation(metricIndex, projectName, evaluationDate);
         long deletedRelations = deleteCurrentEvaluation(relationsIndex, projectName, evaluationDate);
@@ -192,19 +811,139 @@ public class MongoDB {
         log.info(bulkResponseCheck(br));
     }
 
+    /**
+     * Load the metrics stored for a project and evaluationDate
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @return Map of metric id -> stored metric document
+     */
+    public Map<String,Document> loadMetrics(Properties projectProperties, String evaluationDate) {
+        String projectName = projectProperties.getProperty("project.name");
+        String metricIndex = projectProperties.getProperty("metrics.index") + "." + projectName;
+        Map<String,Document> result = new HashMap<>();
+        Document filter = new Document("evaluationDate", evaluationDate).append("project", projectName);
+        for (Document d : database.getCollection(metricIndex).find(filter)) {
+            result.put(d.getString("metric"), d);
+        }
+        return result;
+    }
+
+    /**
+     * Load the metrics stored for a project and several evaluationDates in one query
+     * @param projectProperties properties of the project
+     * @param evaluationDates the evaluationDates
+     * @return Map of evaluationDate -> metric id -> stored metric document
+     */
+    public Map<String,Map<String,Document>> loadMetrics(Properties projectProperties, List<String> evaluationDates) {
+        String projectName = projectProperties.getProperty("project.name");
+        String metricIndex = projectProperties.getProperty("metrics.index") + "." + projectName;
+        return loadItems(metricIndex, projectName, evaluationDates, "metric",
+            new Document("metric", 1).append("evaluationDate", 1).append("value", 1).append("source", 1).append("info", 1)
+                .append("definitionFingerprint", 1));
+    }
+
+    /**
+     * Load the factors stored for a project and several evaluationDates in one query
+     * @param projectProperties properties of the project
+     * @param evaluationDates the evaluationDates
+     * @return Map of evaluationDate -> factor id -> stored factor document
+     */
+    public Map<String,Map<String,Document>> loadFactors(Properties projectProperties, List<String> evaluationDates) {
+        String projectName = projectProperties.getProperty("project.name");
+        String factorsIndex = projectProperties.getProperty("factors.index") + "." + projectName;
+        return loadItems(factorsIndex, projectName, evaluationDates, "factor",
+            new Document("factor", 1).append("evaluationDate", 1).append("value", 1).append("info", 1)
+                .append("name", 1).append("description", 1).append("indicators", 1).append("weights", 1));
+    }
+
+    /**
+     * Load the indicators stored for a project and several evaluationDates in one query
+     * @param projectProperties properties of the project
+     * @param evaluationDates the evaluationDates
+     * @return Map of evaluationDate -> indicator id -> stored indicator document
+     */
+    public Map<String,Map<String,Document>> loadIndicators(Properties projectProperties, List<String> evaluationDates) {
+        String projectName = projectProperties.getProperty("project.name");
+        String indicatorsIndex = projectProperties.getProperty("indicators.index") + "." + projectName;
+        return loadItems(indicatorsIndex, projectName, evaluationDates, "strategic_indicator",
+            new Document("strategic_indicator", 1).append("evaluationDate", 1).append("value", 1).append("info", 1)
+                .append("name", 1).append("description", 1).append("parents", 1).append("weights", 1));
+    }
+
+    private Map<String,Map<String,Document>> loadItems(String collectionName, String projectName, List<String> evaluationDates, String idField, Document projection) {
+        Map<String,Map<String,Document>> result = new HashMap<>();
+        Document filter = new Document("project", projectName)
+            .append("evaluationDate", new Document("$in", evaluationDates));
+        for (Document d : database.getCollection(collectionName).find(filter).projection(projection)) {
+            result.computeIfAbsent(d.getString("evaluationDate"), k -> new HashMap<>()).put(d.getString(idField), d);
+        }
+        return result;
+    }
+
+    /**
+     * Find the stored execution result of a metric query with a given fingerprint
+     * @param projectProperties properties of the project
+     * @param metric id of the metric
+     * @param fingerprint fingerprint of the bound metric query
+     * @return the stored execution result, null if there is none
+     */
+    public Map<String,Object> findQueryResult(Properties projectProperties, String metric, String fingerprint) {
+        String projectName = projectProperties.getProperty("project.name");
+        String metricIndex = projectProperties.getProperty("metrics.index") + "." + projectName;
+        Document filter = new Document("project", projectName)
+            .append("metric", metric)
+            .append("queryFingerprint", fingerprint);
+        Document stored = database.getCollection(metricIndex).find(filter)
+            .projection(new Document("queryResult", 1))
+            .first();
+        if (stored == null || !(stored.get("queryResult") instanceof List)) return null;
+        Map<String,Object> result = new HashMap<>();
+        for (Object pair : (List<?>) stored.get("queryResult")) {
+            if (pair instanceof Document) {
+                result.put(((Document) pair).getString("name"), ((Document) pair).get("value"));
+            }
+        }
+        return result;
+    }
+
     public void storeRelations(Properties projectProperties, Collection<Relation> relations) {
         String projectName = projectProperties.getProperty("project.name");
         String relationsIndex = projectProperties.getProperty("relations.index") + "." + projectName;
-        checkCreateIndex(relationsIndex, Schemas.RELATIONS_SCHEMA);
+        checkCreateIndex(relationsIndex, Schemas.RELATIONS_SCHEMA, Schemas.RELATIONS_INDEXES);
 
         BulkWriteResult br = writeBulk(relationsIndex, relations);
         log.info(bulkResponseCheck(br));
     }
 
+    /**
+     * Set the targetValue of the stored relations to computed targets. Relations are stored before their
+     * targets are computed when factors and indicators are aggregated from the stored relations.
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @param targets the computed Factors or Indicators
+     */
+    public void updateTargetValues(Properties projectProperties, String evaluationDate, Collection<? extends IndexItem> targets) {
+        String projectName = projectProperties.getProperty("project.name");
+        String relationsIndex = projectProperties.getProperty("relations.index") + "." + projectName;
+        List<WriteModel<Document>> writeModels = new ArrayList<>();
+        for (IndexItem target : targets) {
+            if (target.getValue() == null) continue;
+            Document filter = new Document("project", projectName)
+                .append("evaluationDate", evaluationDate)
+                .append("targetType", target.getType())
+                .append("targetId", target.getMongodbId());
+            writeModels.add(new UpdateManyModel<>(filter, new Document("$set", new Document("targetValue", target.getValue().toString()))));
+        }
+        if (writeModels.isEmpty()) return;
+        collectionExists(relationsIndex);
+        BulkWriteResult br = database.getCollection(relationsIndex).bulkWrite(writeModels, new BulkWriteOptions().ordered(false));
+        log.info("targetValue of " + br.getModifiedCount() + " relations updated (evaluationDate=" + evaluationDate + ").\n");
+    }
+
     public void storeFactors(Properties projectProperties, String evaluationDate, Collection<Factor> factors ) {
         String projectName = projectProperties.getProperty("project.name");
         String factorsIndex = projectProperties.getProperty("factors.index") + "." + projectName;
-        checkCreateIndex(factorsIndex, Schemas.FACTORS_SCHEMA);
+        checkCreateIndex(factorsIndex, Schemas.FACTORS_SCHEMA, Schemas.FACTORS_INDEXES);
 
         long deleted = deleteCurrentEvaluation(factorsIndex, projectName, evaluationDate);
         log.info("deleted " + deleted + " factors (evaluationDate=" + evaluationDate + ").\n");
@@ -216,7 +955,7 @@ public class MongoDB {
     public void storeIndicators(Properties projectProperties, String evaluationDate, Collection<Indicator> indicators) {
         String projectName = projectProperties.getProperty("project.name");
         String indicatorsIndex = projectProperties.getProperty("indicators.index") + "." + projectName;
-        checkCreateIndex(indicatorsIndex, Schemas.STRATEGIC_INDICATORS_SCHEMA);
+        checkCreateIndex(indicatorsIndex, Schemas.STRATEGIC_INDICATORS_SCHEMA, Schemas.STRATEGIC_INDICATORS_INDEXES);
 
         long deleted = deleteCurrentEvaluation(indicatorsIndex, projectName, evaluationDate);
         log.info("deleted " + deleted + " indicators (evaluationDate=" + evaluationDate + ").\n");
@@ -225,16 +964,124 @@ public class MongoDB {
         log.info(bulkResponseCheck(br));
     }
 
-    private void checkCreateIndex(String indexName, Document schemaPathname) {
+    /**
+     * Rewrite the metrics of an evaluation with the given ids, other metrics of the evaluation are left untouched
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @param metricIds ids of the metrics to delete (changed or removed metrics)
+     * @param metrics the changed metrics to write
+     */
+    public void updateMetrics(Properties projectProperties, String evaluationDate, Collection<String> metricIds, Collection<Metric> metrics) {
+        String projectName = projectProperties.getProperty("project.name");
+        String metricIndex = projectProperties.getProperty("metrics.index") + "." + projectName;
+        checkCreateIndex(metricIndex, Schemas.METRICS_SCHEMA, Schemas.METRICS_INDEXES);
+        updateItems(metricIndex, projectName, evaluationDate, new Document("metric", new Document("$in", metricIds)), metrics);
+    }
+
+    /**
+     * Rewrite the factors of an evaluation with the given ids, other factors of the evaluation are left untouched
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @param factorIds ids of the factors to delete (influenced by changed metrics)
+     * @param factors the recomputed factors to write
+     */
+    public void updateFactors(Properties projectProperties, String evaluationDate, Collection<String> factorIds, Collection<Factor> factors) {
+        String projectName = projectProperties.getProperty("project.name");
+        String factorsIndex = projectProperties.getProperty("factors.index") + "." + projectName;
+        checkCreateIndex(factorsIndex, Schemas.FACTORS_SCHEMA, Schemas.FACTORS_INDEXES);
+        updateItems(factorsIndex, projectName, evaluationDate, new Document("factor", new Document("$in", factorIds)), factors);
+    }
+
+    /**
+     * Rewrite the indicators of an evaluation with the given ids, other indicators of the evaluation are left untouched
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @param indicatorIds ids of the indicators to delete (influenced by changed factors)
+     * @param indicators the recomputed indicators to write
+     */
+    public void updateIndicators(Properties projectProperties, String evaluationDate, Collection<String> indicatorIds, Collection<Indicator> indicators) {
+        String projectName = projectProperties.getProperty("project.name");
+        String indicatorsIndex = projectProperties.getProperty("indicators.index") + "." + projectName;
+        checkCreateIndex(indicatorsIndex, Schemas.STRATEGIC_INDICATORS_SCHEMA, Schemas.STRATEGIC_INDICATORS_INDEXES);
+        updateItems(indicatorsIndex, projectName, evaluationDate, new Document("strategic_indicator", new Document("$in", indicatorIds)), indicators);
+    }
+
+    /**
+     * Rewrite the relations of an evaluation from or to the given items, other relations of the evaluation are left untouched
+     * @param projectProperties properties of the project
+     * @param evaluationDate the evaluationDate
+     * @param sourceType type of the relation sources (metrics, factors)
+     * @param sourceIds ids (mongodb ids) of the changed sources
+     * @param targetType type of the relation targets (factors, indicators)
+     * @param targetIds ids (mongodb ids) of the changed targets
+     * @param relations the relations from or to the changed items to write
+     */
+    public void updateRelations(Properties projectProperties, String evaluationDate, String sourceType, Collection<String> sourceIds,
+            String targetType, Collection<String> targetIds, Collection<Relation> relations) {
+        String projectName = projectProperties.getProperty("project.name");
+        String relationsIndex = projectProperties.getProperty("relations.index") + "." + projectName;
+        checkCreateIndex(relationsIndex, Schemas.RELATIONS_SCHEMA, Schemas.RELATIONS_INDEXES);
+        Document changed = new Document("$or", Arrays.asList(
+            new Document("sourceType", sourceType).append("sourceId", new Document("$in", sourceIds)),
+            new Document("targetType", targetType).append("targetId", new Document("$in", targetIds))));
+        updateItems(relationsIndex, projectName, evaluationDate, changed, relations);
+    }
+
+    private void updateItems(String collectionName, String projectName, String evaluationDate, Document changed, Collection<? extends IndexItem> items) {
+        try {
+            Document filter = new Document("project", projectName)
+                .append("evaluationDate", evaluationDate)
+                .append("$and", Arrays.asList(changed));
+            collectionExists(collectionName);
+            long deleted = database.getCollection(collectionName).deleteMany(filter).getDeletedCount();
+            log.info("deleted " + deleted + " changed items of " + collectionName + " (evaluationDate=" + evaluationDate + ").\n");
+        } catch (RuntimeException rte) {
+            log.warning(rte.getMessage());
+        }
+        BulkWriteResult br = writeBulk(collectionName, items);
+        log.info(bulkResponseCheck(br));
+    }
+
+    private void checkCreateIndex(String indexName, Document schemaPathname, List<Document> indexes) {
         try {
             CollectionManager mgr = new CollectionManager(this);
-            mgr.createIndex(indexName, schemaPathname);
+            mgr.createIndex(indexName, schemaPathname, indexes);
         } catch (Exception e) {
             log.info(e.getMessage());
         }
     }
 
+    /**
+     * Verify the secondary indexes (see Schemas) of the existing target collections of a project,
+     * missing indexes are created.
+     * @param projectProperties the project properties
+     */
+    public void ensureTargetIndexes(Properties projectProperties) {
+        String projectName = projectProperties.getProperty("project.name");
+        Map<String,List<Document>> targets = new LinkedHashMap<>();
+        targets.put(projectProperties.getProperty("metrics.index") + "." + projectName, Schemas.METRICS_INDEXES);
+        targets.put(projectProperties.getProperty("relations.index") + "." + projectName, Schemas.RELATIONS_INDEXES);
+        targets.put(projectProperties.getProperty("factors.index") + "." + projectName, Schemas.FACTORS_INDEXES);
+        targets.put(projectProperties.getProperty("indicators.index") + "." + projectName, Schemas.STRATEGIC_INDICATORS_INDEXES);
+        targets.put(Watermarks.WATERMARKS_INDEX + "." + projectName, Schemas.WATERMARKS_INDEXES);
+
+        CollectionManager mgr = new CollectionManager(this);
+        for (Map.Entry<String,List<Document>> e : targets.entrySet()) {
+            try {
+                int created = mgr.ensureIndexes(e.getKey(), e.getValue());
+                if (created > 0) {
+                    log.warning(created + " missing index(es) created on " + e.getKey() + "\n");
+                }
+            } catch (MongoException me) {
+                log.warning("Indexes of " + e.getKey() + " can't be verified: " + me.getMessage() + "\n");
+            }
+        }
+    }
+
     private BulkWriteResult writeBulk(String collectionName, Collection<? extends IndexItem> items) {
+        if (items.isEmpty()) {
+            return null;
+        }
         List<WriteModel<Document>> writeModels = new ArrayList<>();
         collectionExists(collectionName);
         MongoCollection<Document> collection = database.getCollection(collectionName);
@@ -250,8 +1097,7 @@ public class MongoDB {
 
     private String bulkResponseCheck(BulkWriteResult result) {
         if (result == null) {
-            log.warning("Result is null");
-            return "";
+            return "BulkWrite skipped, no items to write.\n";
         }
 
         int writtenItems = result.getUpserts().size() + result.getMatchedCount();
@@ -0,0 +1,72 @@
+package eval2;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+
+/**
+ * Rewrites of compiled aggregation pipelines of QueryDefs whose first result document is used only:
+ * adjacent $match stages are merged and a $project of the fields referenced by the 'result.*'
+ * properties is appended. The result is limited when the query is executed (see MongoDB.searchFirst).
+ * Pipelines writing their result ($out, $merge) are only merged.
+ */
+public class PipelineOptimizer {
+
+	// Stages that must be the last stage of a pipeline
+	private static final List<String> FINAL_STAGES = Arrays.asList("$out", "$merge");
+
+	private PipelineOptimizer() {
+	}
+
+	/**
+	 * Optimize a pipeline
+	 * @param pipeline the pipeline, a BsonArray of stages, not modified
+	 * @param resultFields fields read from the first result document, as declared by 'result.*' properties
+	 * @return the optimized pipeline
+	 */
+	public static BsonArray optimize( BsonArray pipeline, Collection<String> resultFields ) {
+		BsonArray result = new BsonArray();
+		boolean writes = false;
+
+		for ( BsonValue value : pipeline ) {
+			BsonDocument stage = value.asDocument();
+			for ( String operator : stage.keySet() ) {
+				writes |= FINAL_STAGES.contains(operator);
+			}
+
+			BsonDocument previous = result.isEmpty() ? null : result.get( result.size() - 1 ).asDocument();
+			if ( isMatch(stage) && previous != null && isMatch(previous) ) {
+				BsonArray conditions = new BsonArray( Arrays.asList( previous.get("$match"), stage.get("$match") ) );
+				result.set( result.size() - 1, new BsonDocument("$match", new BsonDocument("$and", conditions)) );
+			} else {
+				result.add(stage);
+			}
+		}
+		if ( writes ) return result;
+
+		BsonDocument projection = new BsonDocument();
+		for ( String field : resultFields ) {
+			// result values are looked up as top level fields of the result document
+			String topLevel = field.trim().split("\\.")[0];
+			if ( topLevel.isEmpty() || topLevel.startsWith("$") ) return result;
+			projection.put( topLevel, new BsonInt32(1) );
+		}
+		if ( !projection.isEmpty() ) {
+			if ( !projection.containsKey("_id") ) {
+				projection.put( "_id", new BsonInt32(0) );
+			}
+			result.add( new BsonDocument("$project", projection) );
+		}
+		return result;
+	}
+
+	private static boolean isMatch( BsonDocument stage ) {
+		return stage.size() == 1 && stage.containsKey("$match") && stage.get("$match").isDocument();
+	}
+
+}
@@ -0,0 +1,348 @@
+package eval2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import type.Factor;
+import type.IndexItem;
+import type.Indicator;
+import util.CompiledFormula;
+import util.Evaluator;
+import util.Formula;
+
+/**
+ * The quality model compiled into sparse weight matrices in compressed sparse row (CSR) format:
+ * factors x metrics (factors and weights of &lt;metric&gt;.properties) and indicators x factors
+ * (indicators and weights of factors.properties). Only enabled metrics, factors and indicators are compiled.
+ *
+ * Propagation works on dense row-major matrices with one row per metric (factor, indicator) and one column
+ * per evaluationDate, so the factors and indicators of many evaluationDates are computed by one sparse x dense
+ * product per level. Values are primitive doubles, NaN marks a missing metric or a dropped factor or indicator.
+ */
+public class QualityModel {
+
+	private static final Logger log = Logger.getLogger("eval2.QualityModel");
+
+	// Variables of the factor and indicator formulas
+	private static final List<String> VARIABLES = Arrays.asList("valuesum", "weightsum", "numberOfMetrics");
+
+	private final String[] metrics;
+	private final Factor[] factors;
+	private final Indicator[] indicators;
+
+	// metric name -> row
+	private final Map<String,Integer> metricRows = new HashMap<>();
+
+	// factors x metrics
+	private final Csr factorWeights;
+
+	// indicators x factors
+	private final Csr indicatorWeights;
+
+	private QualityModel( String[] metrics, Factor[] factors, Indicator[] indicators, Csr factorWeights, Csr indicatorWeights ) {
+		this.metrics = metrics;
+		this.factors = factors;
+		this.indicators = indicators;
+		this.factorWeights = factorWeights;
+		this.indicatorWeights = indicatorWeights;
+		for ( int i = 0; i < metrics.length; i++ ) {
+			metricRows.put( metrics[i], i );
+		}
+	}
+
+	/**
+	 * Compile the quality model. Relations to undefined or disabled factors and indicators are left out,
+	 * like computeMetricRelations and computeFactorRelations of EvalProject do.
+	 * @param metricQueries the enabled metric queries
+	 * @param factorMap the Factors of factors.properties
+	 * @param indicatorMap the Indicators of indicators.properties
+	 * @return the compiled QualityModel
+	 */
+	public static QualityModel compile( Map<String,QueryDef> metricQueries, Map<String,Factor> factorMap, Map<String,Indicator> indicatorMap ) {
+		String[] metrics = new TreeMap<>(metricQueries).keySet().toArray(new String[0]);
+		Factor[] factors = enabled(factorMap).toArray(new Factor[0]);
+		Indicator[] indicators = enabled(indicatorMap).toArray(new Indicator[0]);
+
+		Map<String,Integer> factorRows = new HashMap<>();
+		for ( int i = 0; i < factors.length; i++ ) {
+			factorRows.put( factors[i].getFactor(), i );
+		}
+		Map<String,Integer> indicatorRows = new HashMap<>();
+		for ( int i = 0; i < indicators.length; i++ ) {
+			indicatorRows.put( indicators[i].getIndicator(), i );
+		}
+
+		Csr.Builder factorWeights = new Csr.Builder( factors.length );
+		for ( int m = 0; m < metrics.length; m++ ) {
+			QueryDef metricQuery = metricQueries.get( metrics[m] );
+			String[] targets = metricQuery.getPropertyAsStringArray("factors");
+			Double[] weights = metricQuery.getPropertyAsDoubleArray("weights");
+			for ( int i = 0; i < targets.length; i++ ) {
+				Integer row = factorRows.get( targets[i] );
+				if ( row != null ) factorWeights.add( row, m, weights[i] );
+			}
+		}
+
+		Csr.Builder indicatorWeights = new Csr.Builder( indicators.length );
+		for ( int f = 0; f < factors.length; f++ ) {
+			String[] targets = factors[f].getIndicators();
+			Double[] weights = factors[f].getWeights();
+			for ( int i = 0; i < targets.length; i++ ) {
+				Integer row = indicatorRows.get( targets[i] );
+				if ( row != null ) indicatorWeights.add( row, f, weights[i] );
+			}
+		}
+
+		return new QualityModel( metrics, factors, indicators, factorWeights.build(), indicatorWeights.build() );
+	}
+
+	private static <T extends IndexItem> List<T> enabled( Map<String,T> items ) {
+		List<T> result = new ArrayList<>();
+		for ( T item : new TreeMap<>(items).values() ) {
+			if ( item.isEnabled() ) result.add(item);
+		}
+		return result;
+	}
+
+	/**
+	 * @return names of the metrics, in row order
+	 */
+	public String[] getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the (enabled) Factors of factors.properties, in row order
+	 */
+	public Factor[] getFactors() {
+		return factors;
+	}
+
+	/**
+	 * @return the (enabled) Indicators of indicators.properties, in row order
+	 */
+	public Indicator[] getIndicators() {
+		return indicators;
+	}
+
+	/**
+	 * @param metric name of a metric
+	 * @return row of the metric, -1 if the metric isn't part of the model
+	 */
+	public int getMetricRow( String metric ) {
+		Integer row = metricRows.get(metric);
+		return ( row != null ) ? row : -1;
+	}
+
+	Csr getFactorWeights() {
+		return factorWeights;
+	}
+
+	Csr getIndicatorWeights() {
+		return indicatorWeights;
+	}
+
+	/**
+	 * Propagate metric values to factors and indicators
+	 * @param metricValues metrics x dates, row-major, NaN for missing metrics
+	 * @param dates number of evaluationDates (columns)
+	 * @param factorFormula formula of factor.properties
+	 * @param indicatorFormula formula of indicator.properties
+	 * @param compiled evaluate the formulas compiled (project.properties 'formula.compiled')
+	 * @return the factor and indicator levels
+	 */
+	public Propagation propagate( double[] metricValues, int dates, Formula factorFormula, Formula indicatorFormula, boolean compiled ) {
+		if ( metricValues.length != metrics.length * dates ) {
+			throw new IllegalArgumentException("Expected " + metrics.length + " x " + dates + " metric values, got " + metricValues.length);
+		}
+		Level factorLevel = propagate( factorWeights, metricValues, dates, factorFormula, compiled, factors );
+		Level indicatorLevel = propagate( indicatorWeights, factorLevel.values, dates, indicatorFormula, compiled, indicators );
+		return new Propagation( dates, factorLevel, indicatorLevel );
+	}
+
+	/**
+	 * Propagate the values of one level to the next: per target and evaluationDate the sum of the relation
+	 * values (source value x weight), the sum of the relation weights and the number of relations, skipping
+	 * NaN sources; then the formula applied to the sums. Failing, NaN or infinite results are set to 0 or
+	 * dropped (NaN) according to the onError strategy of the target.
+	 */
+	private static Level propagate( Csr weights, double[] source, int dates, Formula formula, boolean compiled, IndexItem[] targets ) {
+		Level level = new Level( weights.rows, dates );
+
+		for ( int row = 0; row < weights.rows; row++ ) {
+			int offset = row * dates;
+			for ( int k = weights.rowStart[row]; k < weights.rowStart[row + 1]; k++ ) {
+				int sourceOffset = weights.columns[k] * dates;
+				double w = weights.values[k];
+				for ( int d = 0; d < dates; d++ ) {
+					double v = source[sourceOffset + d];
+					if ( Double.isNaN(v) ) continue;
+					level.valuesum[offset + d] += v * w;
+					level.weightsum[offset + d] += w;
+					level.count[offset + d]++;
+				}
+			}
+		}
+
+		// formula variable slots: 0 valuesum, 1 weightsum, 2 numberOfMetrics, -1 unbound
+		String[] variables = formula.getVariables();
+		int[] slots = new int[variables.length];
+		List<String> unbound = new ArrayList<>();
+		for ( int i = 0; i < variables.length; i++ ) {
+			slots[i] = VARIABLES.indexOf( variables[i] );
+			if ( slots[i] < 0 ) unbound.add( variables[i] );
+		}
+		if ( !unbound.isEmpty() ) {
+			log.warning("Formula " + formula.getFormula() + " uses unknown variables " + unbound + " (known: " + VARIABLES
+				+ "), its values are dropped or set to 0.\n");
+		}
+		CompiledFormula compiledFormula = compiled ? Evaluator.compile(formula) : formula::evaluate;
+
+		double[] vars = new double[variables.length];
+		for ( int row = 0; row < weights.rows; row++ ) {
+			boolean set0 = targets[row].onErrorSet0();
+			for ( int i = row * dates; i < (row + 1) * dates; i++ ) {
+				double value = Double.NaN;
+				if ( unbound.isEmpty() ) {
+					for ( int s = 0; s < slots.length; s++ ) {
+						vars[s] = ( slots[s] == 0 ) ? level.valuesum[i] : ( slots[s] == 1 ) ? level.weightsum[i] : level.count[i];
+					}
+					try {
+						value = Math.min( compiledFormula.apply(vars), 1.0 );
+					} catch ( RuntimeException e ) {
+						value = Double.NaN;
+					}
+				}
+				if ( Double.isNaN(value) || Double.isInfinite(value) ) {
+					value = set0 ? 0.0 : Double.NaN;
+				}
+				level.values[i] = value;
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * Results of a propagation
+	 */
+	public static class Propagation {
+		private final int dates;
+		private final Level factors;
+		private final Level indicators;
+
+		Propagation( int dates, Level factors, Level indicators ) {
+			this.dates = dates;
+			this.factors = factors;
+			this.indicators = indicators;
+		}
+
+		public int getDates() {
+			return dates;
+		}
+
+		/**
+		 * @return factors x dates
+		 */
+		public Level getFactors() {
+			return factors;
+		}
+
+		/**
+		 * @return indicators x dates
+		 */
+		public Level getIndicators() {
+			return indicators;
+		}
+	}
+
+	/**
+	 * Relation aggregates and values of one level, targets x dates, row-major
+	 */
+	public static class Level {
+		final double[] valuesum;
+		final double[] weightsum;
+		final int[] count;
+		final double[] values;
+
+		Level( int rows, int dates ) {
+			valuesum = new double[rows * dates];
+			weightsum = new double[rows * dates];
+			count = new int[rows * dates];
+			values = new double[rows * dates];
+		}
+
+		public double getValue( int row, int dates, int date ) {
+			return values[row * dates + date];
+		}
+
+		/**
+		 * @return the relation aggregates of a target and date, like the factor and indicator queries return them
+		 */
+		public Map<String,Object> getAggregation( int row, int dates, int date ) {
+			int i = row * dates + date;
+			Map<String,Object> result = new HashMap<>();
+			result.put( "valuesum", valuesum[i] );
+			result.put( "weightsum", weightsum[i] );
+			result.put( "numberOfMetrics", (long) count[i] );
+			return result;
+		}
+	}
+
+	/**
+	 * A sparse matrix in compressed sparse row format: the entries of row r are
+	 * columns[rowStart[r] .. rowStart[r+1]-1] and values[rowStart[r] .. rowStart[r+1]-1]
+	 */
+	static class Csr {
+		final int rows;
+		final int[] rowStart;
+		final int[] columns;
+		final double[] values;
+
+		private Csr( int rows, int[] rowStart, int[] columns, double[] values ) {
+			this.rows = rows;
+			this.rowStart = rowStart;
+			this.columns = columns;
+			this.values = values;
+		}
+
+		static class Builder {
+			private final int rows;
+			private final List<int[]> entries = new ArrayList<>();
+			private final List<Double> weights = new ArrayList<>();
+
+			Builder( int rows ) {
+				this.rows = rows;
+			}
+
+			void add( int row, int column, double value ) {
+				entries.add( new int[] { row, column } );
+				weights.add( value );
+			}
+
+			Csr build() {
+				int[] rowStart = new int[rows + 1];
+				for ( int[] e : entries ) {
+					rowStart[e[0] + 1]++;
+				}
+				for ( int r = 0; r < rows; r++ ) {
+					rowStart[r + 1] += rowStart[r];
+				}
+				int[] next = Arrays.copyOf( rowStart, rows );
+				int[] columns = new int[entries.size()];
+				double[] values = new double[entries.size()];
+				for ( int i = 0; i < entries.size(); i++ ) {
+					int pos = next[ entries.get(i)[0] ]++;
+					columns[pos] = entries.get(i)[1];
+					values[pos] = weights.get(i);
+				}
+				return new Csr( rows, rowStart, columns, values );
+			}
+		}
+	}
+
+}
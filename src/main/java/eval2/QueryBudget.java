@@ -0,0 +1,116 @@
+package eval2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Time budget of the source queries of an evaluation of a project.
+ * Each query is limited to its 'maxTime' property (milliseconds) or the project default
+ * 'query.maxTime', applied server-side as maxTimeMS. The evaluation of a project and evaluationDate
+ * is limited by the project property 'evaluation.deadline' (seconds after the start of the evaluation):
+ * queries get at most the remaining time, queries starting after the deadline are not executed.
+ * Evaluations querying several evaluationDates at once get the deadline once per evaluationDate.
+ * Cut queries deliver no results, so the onError handling of their metrics applies. They are
+ * collected for the report at the end of the run.
+ */
+public class QueryBudget {
+
+	// No limits
+	public static final QueryBudget UNLIMITED = new QueryBudget( null, null, 0, 0 );
+
+	// Cut queries of the run: project/evaluationDate/query (reason)
+	private static final List<String> cutQueries = Collections.synchronizedList( new ArrayList<>() );
+
+	private final String project;
+	private final String evaluationDate;
+	private final long defaultMaxTimeMS;
+	private final long deadline;
+
+	private QueryBudget( String project, String evaluationDate, long defaultMaxTimeMS, long deadline ) {
+		this.project = project;
+		this.evaluationDate = evaluationDate;
+		this.defaultMaxTimeMS = defaultMaxTimeMS;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Start the budget of an evaluation
+	 * @param projectProperties the project properties
+	 * @param evaluationDate the evaluationDate
+	 * @return the budget, starting now
+	 */
+	public static QueryBudget start( Properties projectProperties, String evaluationDate ) {
+		return start( projectProperties, evaluationDate, 1 );
+	}
+
+	/**
+	 * Start the budget of an evaluation querying several evaluationDates at once
+	 * @param projectProperties the project properties
+	 * @param range the range of evaluationDates
+	 * @param dates number of evaluationDates of the range, the deadline is extended accordingly
+	 * @return the budget, starting now
+	 */
+	public static QueryBudget start( Properties projectProperties, String range, int dates ) {
+		long maxTime = Long.parseLong( projectProperties.getProperty("query.maxTime", "0").trim() );
+		long deadlineSeconds = Long.parseLong( projectProperties.getProperty("evaluation.deadline", "0").trim() );
+		long deadline = deadlineSeconds > 0 ? System.currentTimeMillis() + deadlineSeconds * 1000 * Math.max(1, dates) : 0;
+		return new QueryBudget( projectProperties.getProperty("project.name"), range, Math.max(0, maxTime), deadline );
+	}
+
+	/**
+	 * Get the time limit of a query
+	 * @param queryDef the query, null for the project default
+	 * @return the time limit in milliseconds, 0 for no limit, negative if the deadline has passed
+	 */
+	public long getMaxTimeMS( QueryDef queryDef ) {
+		return getMaxTimeMS( queryDef, 1 );
+	}
+
+	/**
+	 * Get the time limit of a query covering several evaluationDates at once
+	 * @param queryDef the query, null for the project default
+	 * @param dates number of evaluationDates, the time limit of the query is multiplied by it
+	 * @return the time limit in milliseconds, 0 for no limit, negative if the deadline has passed
+	 */
+	public long getMaxTimeMS( QueryDef queryDef, int dates ) {
+		long maxTime = defaultMaxTimeMS;
+		if ( queryDef != null && queryDef.getProperty("maxTime") != null ) {
+			maxTime = Long.parseLong( queryDef.getProperty("maxTime").trim() );
+		}
+		maxTime *= Math.max(1, dates);
+		if ( deadline > 0 ) {
+			long remaining = deadline - System.currentTimeMillis();
+			if ( remaining <= 0 ) return -1;
+			maxTime = ( maxTime > 0 ) ? Math.min(maxTime, remaining) : remaining;
+		}
+		return maxTime;
+	}
+
+	/**
+	 * Record a query cut by its time limit or the deadline
+	 * @param queryName name of the query
+	 * @param reason reason of the cut
+	 */
+	public void cut( String queryName, String reason ) {
+		cutQueries.add( project + "/" + evaluationDate + "/" + queryName + " (" + reason + ")" );
+	}
+
+	/**
+	 * @return the queries cut in this run
+	 */
+	public static List<String> getCutQueries() {
+		synchronized (cutQueries) {
+			return new ArrayList<>( cutQueries );
+		}
+	}
+
+	/**
+	 * Clear the queries cut, at the start of a run
+	 */
+	public static void resetCutQueries() {
+		cutQueries.clear();
+	}
+
+}
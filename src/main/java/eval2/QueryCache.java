@@ -0,0 +1,220 @@
+package eval2;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+/**
+ * In-memory cache of aggregation results, keyed on (server, database, collection, bound pipeline, options).
+ * Entries are evicted in LRU order when the cache exceeds its size and expire after a time to live.
+ * Optionally, entries are invalidated when the watermark of their collection changed (see Watermarks),
+ * the watermark of a collection is refreshed at most once per watermark interval.
+ *
+ * Configured in eval.properties:
+ * query.cache.size (number of entries, 0 disables the cache), query.cache.ttl (seconds, 0 for no expiry),
+ * query.cache.watermark (true/false), query.cache.watermark.interval (seconds) and
+ * query.cache.watermark.field.&lt;collection&gt; (optional watermark field).
+ */
+public class QueryCache {
+
+	private static final Logger log = Logger.getLogger("eval2.QueryCache");
+
+	private static final String WATERMARK_FIELD_PREFIX = "query.cache.watermark.field.";
+
+	// Cache used by all MongoDB instances, disabled until configured
+	private static volatile QueryCache instance = new QueryCache(0, 0, false, 0, new Properties());
+
+	private final int size;
+	private final long ttlMillis;
+	private final boolean watermarkInvalidation;
+	private final long watermarkIntervalMillis;
+	private final Properties evalProperties;
+
+	private final Map<Key,Entry> entries;
+	private final Map<String,Watermark> watermarks = new LinkedHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private QueryCache( int size, long ttlMillis, boolean watermarkInvalidation, long watermarkIntervalMillis, Properties evalProperties ) {
+		this.size = size;
+		this.ttlMillis = ttlMillis;
+		this.watermarkInvalidation = watermarkInvalidation;
+		this.watermarkIntervalMillis = watermarkIntervalMillis;
+		this.evalProperties = evalProperties;
+		this.entries = new LinkedHashMap<Key,QueryCache.Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Key,QueryCache.Entry> eldest ) {
+				if ( size() > QueryCache.this.size ) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Configure the query cache from eval.properties
+	 * @param evalProperties contents of eval.properties
+	 */
+	public static void configure( Properties evalProperties ) {
+		int size = Integer.parseInt( evalProperties.getProperty("query.cache.size", "0").trim() );
+		long ttl = Long.parseLong( evalProperties.getProperty("query.cache.ttl", "0").trim() );
+		boolean watermark = Boolean.parseBoolean( evalProperties.getProperty("query.cache.watermark", "false").trim() );
+		long interval = Long.parseLong( evalProperties.getProperty("query.cache.watermark.interval", "60").trim() );
+		instance = new QueryCache( Math.max(0, size), ttl * 1000, watermark, interval * 1000, evalProperties );
+		if ( size > 0 ) {
+			log.info("Query cache enabled: size=" + size + ", ttl=" + ttl + "s, watermark invalidation=" + watermark + "\n");
+		}
+	}
+
+	public static QueryCache getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * Get the cached result of an aggregation, or execute the aggregation and cache its result
+	 * @param server address of the MongoDB server (ip:port)
+	 * @param database the database
+	 * @param collection the collection the aggregation runs on
+	 * @param pipeline the bound aggregation pipeline
+	 * @param options options of the aggregation affecting its execution (hint, maxTimeMS)
+	 * @param search executes the aggregation
+	 * @return the aggregation result
+	 */
+	public List<Document> get( String server, MongoDatabase database, String collection, List<? extends BsonDocument> pipeline, String options,
+			Supplier<List<Document>> search ) {
+		if ( !isEnabled() ) {
+			return search.get();
+		}
+
+		Key key = new Key( server, database.getName(), collection, pipeline, options );
+		Document watermark = watermarkInvalidation ? getWatermark( server, database, collection ) : null;
+		long now = System.currentTimeMillis();
+
+		synchronized (entries) {
+			Entry e = entries.get(key);
+			if ( e != null ) {
+				if ( ttlMillis > 0 && now - e.created > ttlMillis ) {
+					entries.remove(key);
+					evictions.incrementAndGet();
+				} else if ( watermark != null && !watermark.equals(e.watermark) ) {
+					entries.remove(key);
+					invalidations.incrementAndGet();
+				} else {
+					hits.incrementAndGet();
+					return e.result;
+				}
+			}
+		}
+
+		misses.incrementAndGet();
+		List<Document> result = search.get();
+		synchronized (entries) {
+			entries.put( key, new Entry(result, now, watermark) );
+		}
+		return result;
+	}
+
+	private Document getWatermark( String server, MongoDatabase database, String collection ) {
+		String id = server + "/" + database.getName() + "." + collection;
+		long now = System.currentTimeMillis();
+		synchronized (watermarks) {
+			Watermark w = watermarks.get(id);
+			if ( w != null && now - w.computed <= watermarkIntervalMillis ) {
+				return w.watermark;
+			}
+		}
+		Document watermark = Watermarks.compute( database, collection, evalProperties.getProperty(WATERMARK_FIELD_PREFIX + collection) );
+		synchronized (watermarks) {
+			watermarks.put( id, new Watermark(watermark, now) );
+		}
+		return watermark;
+	}
+
+	/**
+	 * @return hit/miss statistics of the cache
+	 */
+	public String getStatistics() {
+		return "Query cache: " + hits.get() + " hits, " + misses.get() + " misses, "
+			+ evictions.get() + " evictions, " + invalidations.get() + " invalidations";
+	}
+
+	/**
+	 * Identity of an aggregation: server, database, collection, bound pipeline and options
+	 */
+	static class Key {
+		private final String server;
+		private final String database;
+		private final String collection;
+		private final List<? extends BsonDocument> pipeline;
+		private final String options;
+		private final int hash;
+
+		Key( String server, String database, String collection, List<? extends BsonDocument> pipeline, String options ) {
+			this.server = server;
+			this.database = database;
+			this.collection = collection;
+			this.pipeline = pipeline;
+			this.options = options;
+			int h = server.hashCode();
+			h = 31 * h + database.hashCode();
+			h = 31 * h + collection.hashCode();
+			h = 31 * h + pipeline.hashCode();
+			h = 31 * h + options.hashCode();
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( !(o instanceof Key) ) return false;
+			Key k = (Key) o;
+			return hash == k.hash && server.equals(k.server) && database.equals(k.database)
+				&& collection.equals(k.collection) && pipeline.equals(k.pipeline) && options.equals(k.options);
+		}
+	}
+
+	private static class Entry {
+		private final List<Document> result;
+		private final long created;
+		private final Document watermark;
+
+		Entry( List<Document> result, long created, Document watermark ) {
+			this.result = result;
+			this.created = created;
+			this.watermark = watermark;
+		}
+	}
+
+	private static class Watermark {
+		private final Document watermark;
+		private final long computed;
+
+		Watermark( Document watermark, long computed ) {
+			this.watermark = watermark;
+			this.computed = computed;
+		}
+	}
+
+}
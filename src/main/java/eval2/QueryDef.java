@@ -3,10 +3,16 @@ package eval2;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bson.BsonDocument;
 
 import type.IndexItem;
+import util.Formula;
 import util.NumberUtils;
 
 public class QueryDef {
@@ -19,10 +25,19 @@ public class QueryDef {
 	
 	// Query template to be executed on MongoDB
 	private String queryTemplate;
+	
+	// Query template compiled at load time
+	private QueryTemplate compiledTemplate;
 
 	// Query Properties (indexes, parameters, results...)
 	private Properties props;
 	
+	// Parsed 'metric' formula, parsed on first use
+	private Formula formula;
+	
+	// Parsed 'hint' property, parsed on first use
+	private BsonDocument hint;
+	
 	/**
 	 *  A named QueryDef consists of a queryTemplate (textual query definition) and Properties
 	 * @param name name of the query definition
@@ -33,7 +48,7 @@ public class QueryDef {
 	public QueryDef( String name, Properties projectProperties, String queryTemplate, Properties props ) {
 		this.name = name;
 		this.projectProperties = projectProperties;
-		this.queryTemplate = queryTemplate;
+		setQueryTemplate(queryTemplate);
 		this.props = props;
 	}
 
@@ -43,10 +58,43 @@ public class QueryDef {
 	
 	public void setQueryTemplate( String queryTemplate ) {
 		this.queryTemplate = queryTemplate;
+		this.compiledTemplate = ( queryTemplate == null ) ? null : QueryTemplate.compile(queryTemplate);
+	}
+	
+	public QueryTemplate getCompiledTemplate() {
+		return compiledTemplate;
 	}
 	
 	public void setProperties( Properties props ) {
 		this.props = props;
+		this.formula = null;
+		this.hint = null;
+	}
+	
+	/**
+	 * Get the fingerprint of this definition: hash of name, query template and properties.
+	 * A changed template, formula or other property changes the fingerprint.
+	 * @return the hex encoded fingerprint
+	 */
+	public String getDefinitionFingerprint() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append('\n').append(queryTemplate);
+		if ( props != null ) {
+			for ( String key : new TreeSet<>( props.stringPropertyNames() ) ) {
+				sb.append('\n').append(key).append('=').append( props.getProperty(key) );
+			}
+		}
+		return MongoDB.sha256( sb.toString() );
+	}
+	
+	/**
+	 * Optimize the compiled template for the results of this QueryDef (see PipelineOptimizer).
+	 * Has to be called after template and properties are set.
+	 */
+	public void optimizeTemplate() {
+		if ( compiledTemplate != null ) {
+			compiledTemplate = compiledTemplate.optimize( getResults().values() );
+		}
 	}
 	
 	public String getProperty( String key ) {
@@ -64,6 +112,38 @@ public class QueryDef {
 		return propValue;
 	}
 	
+	/**
+	 * Get the names of all parameters referenced in the query template as {{parameter}}
+	 * @return the parameter names in order of their first occurrence
+	 */
+	public Set<String> getTemplateParameters() {
+		if ( compiledTemplate == null ) return new LinkedHashSet<>();
+		return compiledTemplate.getParameters();
+	}
+	
+	/**
+	 * Get the 'metric' formula of this QueryDef, parsed once and cached.
+	 * @return the parsed formula
+	 * @throws RuntimeException if the formula is missing or can't be parsed
+	 */
+	public synchronized Formula getFormula() {
+		if ( formula == null ) {
+			formula = Formula.parse( getProperty("metric") );
+		}
+		return formula;
+	}
+	
+	/**
+	 * Get the index hint of this QueryDef, property 'hint' containing an index specification, e.g. {"bcKey": 1}
+	 * @return the hint, null if no hint is set
+	 */
+	public synchronized BsonDocument getHint() {
+		if ( hint == null && props != null && props.getProperty("hint") != null ) {
+			hint = BsonDocument.parse( props.getProperty("hint") );
+		}
+		return hint;
+	}
+	
 	public Map<String,String> getResults() {
 		return getFilteredProperties("result.");
 	}
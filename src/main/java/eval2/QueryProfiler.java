@@ -0,0 +1,317 @@
+package eval2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Profiling of the source queries of a project. Every param query and enabled metric query is explained
+ * with verbosity 'executionStats' (param queries are also executed, their results are needed to bind the
+ * following queries). The report lists documents examined vs. returned, collection scans and the slowest
+ * stages of each query, and compound indexes derived from the leading $match and $sort stages in
+ * Equality-Sort-Range order. Recommended indexes are created on the collections listed in eval.properties
+ * 'profile.index.collections'.
+ */
+public class QueryProfiler {
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	// Collections recommended indexes are created on, eval.properties 'profile.index.collections'
+	private static final String INDEX_COLLECTIONS = "profile.index.collections";
+
+	// Number of slowest stages reported per query
+	private static final int SLOWEST_STAGES = 3;
+
+	// Query operators of equality conditions
+	private static final List<String> EQUALITY_OPERATORS = Arrays.asList("$eq", "$in", "$all", "$elemMatch");
+
+	private final File projectFolder;
+	private final String evaluationDate;
+	private final Set<String> indexCollections = new LinkedHashSet<>();
+
+	private final List<Profile> profiles = new ArrayList<>();
+
+	// Recommended indexes: collection -> index keys
+	private final Map<String,Set<Document>> recommendations = new LinkedHashMap<>();
+
+	public QueryProfiler( File projectFolder, String evaluationDate, Properties evalProperties ) {
+		this.projectFolder = projectFolder;
+		this.evaluationDate = evaluationDate;
+		for ( String c : evalProperties.getProperty(INDEX_COLLECTIONS, "").split(",") ) {
+			if ( !c.trim().isEmpty() ) indexCollections.add( c.trim() );
+		}
+	}
+
+	public void run() {
+		EvalProject project = new EvalProject( projectFolder, evaluationDate );
+		project.open();
+		try {
+			MongoDB source = project.getMongodbSource();
+
+			Map<String,Object> parameters = new HashMap<>();
+			parameters.put("evaluationDate", evaluationDate);
+
+			Map<String,QueryDef> paramQuerySet = project.getParamQuerySet();
+			List<String> keys = new ArrayList<>( paramQuerySet.keySet() );
+			Collections.sort(keys);
+			for ( String key : keys ) {
+				QueryDef queryDef = paramQuerySet.get(key);
+				List<BsonDocument> pipeline = source.bind( parameters, queryDef );
+				profile( "params/" + key, source, queryDef, pipeline );
+				parameters.putAll( source.execute( queryDef, pipeline, evaluationDate ) );
+			}
+
+			for ( Entry<String,QueryDef> e : project.getEnabledMetricQueries().entrySet() ) {
+				profile( "metrics/" + e.getKey(), source, e.getValue(), source.bind( parameters, e.getValue() ) );
+			}
+
+			report();
+			createIndexes( source );
+		} finally {
+			project.close();
+		}
+	}
+
+	/**
+	 * Explain a query and derive its recommended index
+	 */
+	private void profile( String name, MongoDB source, QueryDef queryDef, List<BsonDocument> pipeline ) {
+		String index = queryDef.getProperty("index");
+		Profile profile = new Profile( name, index );
+		try {
+			Document explain = source.explain( index, pipeline, queryDef.getHint() );
+			collectStatistics( explain, profile );
+		} catch ( MongoException e ) {
+			log.warning("Explain of " + name + " failed: " + e.getMessage() + "\n");
+			return;
+		}
+		profiles.add(profile);
+
+		Document keys = recommendIndex(pipeline);
+		if ( keys != null && !isIndexed( source.getDatabase().getCollection(index), keys ) ) {
+			recommendations.computeIfAbsent( index, k -> new LinkedHashSet<>() ).add(keys);
+		}
+	}
+
+	/**
+	 * Collect the execution statistics of an explain output. Depending on server version and pipeline, the
+	 * statistics of the query layer are at top level or in the $cursor stage, aggregation stages report their
+	 * own time estimates.
+	 */
+	@SuppressWarnings("unchecked")
+	private void collectStatistics( Object node, Profile profile ) {
+		if ( node instanceof List ) {
+			for ( Object o : (List<Object>) node ) {
+				collectStatistics( o, profile );
+			}
+			return;
+		}
+		if ( !(node instanceof Document) ) return;
+
+		Document d = (Document) node;
+		if ( "COLLSCAN".equals( d.get("stage") ) ) {
+			profile.collscan = true;
+		}
+		if ( d.get("stage") instanceof String && d.get("executionTimeMillisEstimate") instanceof Number ) {
+			profile.addStage( d.getString("stage"), number(d, "executionTimeMillisEstimate") );
+		}
+
+		Object executionStats = d.get("executionStats");
+		if ( executionStats instanceof Document ) {
+			Document es = (Document) executionStats;
+			profile.docsExamined += number(es, "totalDocsExamined");
+			profile.keysExamined += number(es, "totalKeysExamined");
+			profile.returned += number(es, "nReturned");
+			profile.millis = Math.max( profile.millis, number(es, "executionTimeMillis") );
+		}
+
+		Object stages = d.get("stages");
+		if ( stages instanceof List ) {
+			for ( Object stage : (List<Object>) stages ) {
+				if ( !(stage instanceof Document) ) continue;
+				Document s = (Document) stage;
+				for ( String key : s.keySet() ) {
+					if ( key.startsWith("$") && !key.equals("$cursor") && s.get("executionTimeMillisEstimate") instanceof Number ) {
+						profile.addStage( key, number(s, "executionTimeMillisEstimate") );
+					}
+				}
+			}
+		}
+
+		for ( Object value : d.values() ) {
+			collectStatistics( value, profile );
+		}
+	}
+
+	private static long number( Document d, String key ) {
+		Object o = d.get(key);
+		return ( o instanceof Number ) ? ((Number) o).longValue() : 0;
+	}
+
+	/**
+	 * Derive a compound index from the leading $match stages and a following $sort stage of a pipeline:
+	 * equality fields first, then sort fields, then range fields.
+	 * @param pipeline the bound pipeline
+	 * @return the index keys, null if the pipeline doesn't start with $match or $sort
+	 */
+	static Document recommendIndex( List<BsonDocument> pipeline ) {
+		List<String> equality = new ArrayList<>();
+		List<String> range = new ArrayList<>();
+
+		int i = 0;
+		while ( i < pipeline.size() && pipeline.get(i).isDocument("$match") ) {
+			addConditions( pipeline.get(i).getDocument("$match"), equality, range );
+			i++;
+		}
+
+		Document keys = new Document();
+		for ( String field : equality ) {
+			keys.put( field, 1 );
+		}
+		if ( i < pipeline.size() && pipeline.get(i).isDocument("$sort") ) {
+			for ( Entry<String,BsonValue> e : pipeline.get(i).getDocument("$sort").entrySet() ) {
+				if ( !keys.containsKey(e.getKey()) && e.getValue().isNumber() ) {
+					keys.put( e.getKey(), e.getValue().asNumber().intValue() < 0 ? -1 : 1 );
+				}
+			}
+		}
+		for ( String field : range ) {
+			if ( !keys.containsKey(field) ) {
+				keys.put( field, 1 );
+			}
+		}
+		return keys.isEmpty() ? null : keys;
+	}
+
+	private static void addConditions( BsonDocument filter, List<String> equality, List<String> range ) {
+		for ( Entry<String,BsonValue> e : filter.entrySet() ) {
+			String field = e.getKey();
+			BsonValue condition = e.getValue();
+
+			if ( field.equals("$and") && condition.isArray() ) {
+				for ( BsonValue v : condition.asArray() ) {
+					if ( v.isDocument() ) addConditions( v.asDocument(), equality, range );
+				}
+				continue;
+			}
+			// $or, $expr, $text... don't map to a single compound index
+			if ( field.startsWith("$") ) continue;
+
+			boolean isEquality = true;
+			if ( condition.isDocument() && !condition.asDocument().isEmpty() && condition.asDocument().getFirstKey().startsWith("$") ) {
+				for ( String operator : condition.asDocument().keySet() ) {
+					if ( !EQUALITY_OPERATORS.contains(operator) ) isEquality = false;
+				}
+			}
+			List<String> target = isEquality ? equality : range;
+			if ( !equality.contains(field) && !range.contains(field) ) {
+				target.add(field);
+			}
+		}
+	}
+
+	/**
+	 * Check whether an existing index of a collection starts with the given keys
+	 */
+	private static boolean isIndexed( MongoCollection<Document> collection, Document keys ) {
+		for ( Document index : collection.listIndexes() ) {
+			List<Entry<String,Object>> existing = new ArrayList<>( ((Document) index.get("key")).entrySet() );
+			List<Entry<String,Object>> recommended = new ArrayList<>( keys.entrySet() );
+			if ( existing.size() < recommended.size() ) continue;
+
+			boolean prefix = true;
+			for ( int i = 0; i < recommended.size() && prefix; i++ ) {
+				Entry<String,Object> r = recommended.get(i);
+				Entry<String,Object> x = existing.get(i);
+				prefix = r.getKey().equals(x.getKey()) && x.getValue() instanceof Number
+					&& Integer.signum( ((Number) x.getValue()).intValue() ) == Integer.signum( (Integer) r.getValue() );
+			}
+			if ( prefix ) return true;
+		}
+		return false;
+	}
+
+	private void report() {
+		Collections.sort( profiles, (a, b) -> Long.compare(b.millis, a.millis) );
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Query profile of project folder " + projectFolder.getName() + ", evaluationDate " + evaluationDate + "\n");
+		for ( Profile p : profiles ) {
+			sb.append( String.format("%-40s %-30s %6d ms, docs examined %8d, keys examined %8d, returned %8d%s%n",
+				p.name, p.index, p.millis, p.docsExamined, p.keysExamined, p.returned, p.collscan ? ", COLLSCAN" : "") );
+			Collections.sort( p.stages, (a, b) -> Long.compare(b.millis, a.millis) );
+			for ( Stage s : p.stages.subList(0, Math.min(SLOWEST_STAGES, p.stages.size())) ) {
+				sb.append( String.format("    %-36s %6d ms%n", s.name, s.millis) );
+			}
+		}
+
+		if ( recommendations.isEmpty() ) {
+			sb.append("No missing indexes found.\n");
+		}
+		for ( Entry<String,Set<Document>> e : recommendations.entrySet() ) {
+			for ( Document keys : e.getValue() ) {
+				sb.append("Recommended index on " + e.getKey() + ": " + keys.toJson() + "\n");
+			}
+		}
+		log.info( sb.toString() );
+	}
+
+	private void createIndexes( MongoDB source ) {
+		for ( Entry<String,Set<Document>> e : recommendations.entrySet() ) {
+			if ( !indexCollections.contains(e.getKey()) ) continue;
+
+			MongoCollection<Document> collection = source.getDatabase().getCollection( e.getKey() );
+			for ( Document keys : e.getValue() ) {
+				log.info("Creating index " + keys.toJson() + " on " + e.getKey() + "\n");
+				collection.createIndex(keys);
+			}
+		}
+	}
+
+	private static class Profile {
+		private final String name;
+		private final String index;
+		private long docsExamined;
+		private long keysExamined;
+		private long returned;
+		private long millis;
+		private boolean collscan;
+		private final List<Stage> stages = new ArrayList<>();
+
+		Profile( String name, String index ) {
+			this.name = name;
+			this.index = index;
+		}
+
+		void addStage( String name, long millis ) {
+			stages.add( new Stage(name, millis) );
+		}
+	}
+
+	private static class Stage {
+		private final String name;
+		private final long millis;
+
+		Stage( String name, long millis ) {
+			this.name = name;
+			this.millis = millis;
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+package eval2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+/**
+ * A query template compiled once into a BSON pipeline with parameter slots.
+ *
+ * A {{parameter}} standing as a JSON value is a typed slot: numbers, booleans and dates are bound
+ * as BSON values, strings are bound verbatim (i.e. "true", "15" or "[1,2]" become a boolean, a number
+ * or an array, like the textual replacement does). A {{parameter}} inside a JSON string is replaced
+ * by the textual representation of the parameter value.
+ *
+ * Templates using parameters in places where no slot can be formed (e.g. as document keys) are
+ * rendered textually on every bind.
+ */
+public class QueryTemplate {
+
+	private static final Logger log = Logger.getLogger("eval2.QueryTemplate");
+
+	// Placeholders in query templates: {{parameter}}
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{([^{}]+)\\}\\}");
+
+	// Marks a slot standing as a JSON value
+	private static final char VALUE_SLOT = '\u0001';
+
+	// Marks a slot within a JSON string
+	private static final char STRING_SLOT = '\u0002';
+
+	// Maximum number of parsed parameter values kept
+	private static final int PARSED_VALUES_SIZE = 1000;
+
+	// String parameters bound to value slots, parsed once: verbatim text -> immutable BSON value
+	// (documents and arrays are mutable and parsed on every bind)
+	private static final Map<String,BsonValue> parsedValues = Collections.synchronizedMap(
+		new LinkedHashMap<String,BsonValue>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String,BsonValue> eldest ) {
+				return size() > PARSED_VALUES_SIZE;
+			}
+		});
+
+	// Textual template
+	private final String template;
+
+	// Names of all parameters referenced by the template
+	private final Set<String> parameters;
+
+	// Compiled pipeline, null if the template is rendered textually
+	private final BsonArray pipeline;
+
+	// Documents and arrays of the compiled pipeline containing slots
+	private final Set<BsonValue> slotted = Collections.newSetFromMap( new IdentityHashMap<>() );
+
+	private QueryTemplate( String template ) {
+		this.template = template;
+		this.parameters = findParameters(template);
+
+		BsonArray compiled;
+		try {
+			compiled = BsonDocument.parse( "{ \"pipeline\": " + markSlots(template) + "}" ).getArray("pipeline");
+			collectSlotted(compiled);
+		} catch ( RuntimeException e ) {
+			slotted.clear();
+			compiled = null;
+		}
+
+		if ( compiled == null ) {
+			log.info("Query template can't be precompiled, it is rendered on every execution.\n");
+		}
+		this.pipeline = compiled;
+	}
+
+	private QueryTemplate( String template, BsonArray pipeline ) {
+		this.template = template;
+		this.parameters = findParameters(template);
+		this.pipeline = pipeline;
+		collectSlotted(pipeline);
+	}
+
+	/**
+	 * Compile a query template
+	 * @param template textual template, a JSON array of aggregation stages
+	 * @return the compiled QueryTemplate
+	 */
+	public static QueryTemplate compile( String template ) {
+		return new QueryTemplate( template );
+	}
+
+	/**
+	 * Get this template with an optimized pipeline (see PipelineOptimizer)
+	 * @param resultFields fields read from the first result document
+	 * @return the optimized template, this template if it can't be compiled
+	 */
+	public QueryTemplate optimize( Collection<String> resultFields ) {
+		if ( pipeline == null ) {
+			return this;
+		}
+		return new QueryTemplate( template, PipelineOptimizer.optimize(pipeline, resultFields) );
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Get the names of all parameters referenced in the template as {{parameter}}
+	 * @return the parameter names in order of their first occurrence
+	 */
+	public Set<String> getParameters() {
+		return parameters;
+	}
+
+	public boolean isCompiled() {
+		return pipeline != null;
+	}
+
+	/**
+	 * Bind parameter values to the slots of the template
+	 * @param params parameter values
+	 * @return the aggregation pipeline
+	 */
+	public List<BsonDocument> bind( Map<String,Object> params ) {
+		BsonArray bound = ( pipeline != null ) ? (BsonArray) bindValue(pipeline, params) : render(params);
+
+		List<BsonDocument> result = new ArrayList<>();
+		for ( BsonValue stage : bound ) {
+			result.add( stage.asDocument() );
+		}
+		return result;
+	}
+
+	/**
+	 * Textual replacement of parameters, used for templates that can't be compiled
+	 */
+	private BsonArray render( Map<String,Object> params ) {
+		String queryString = "{ \"pipeline\": " + template + "}";
+		for (Map.Entry<String, Object> entry : params.entrySet())
+			queryString = queryString.replace("{{" + entry.getKey() + "}}", String.valueOf(entry.getValue()));
+		return BsonDocument.parse(queryString).getArray("pipeline");
+	}
+
+	private BsonValue bindValue( BsonValue value, Map<String,Object> params ) {
+		if ( value.isString() ) {
+			String s = value.asString().getValue();
+			if ( s.length() > 2 && s.charAt(0) == VALUE_SLOT && s.indexOf(VALUE_SLOT, 1) == s.length() - 1 ) {
+				String name = s.substring(1, s.length() - 1);
+				if ( !params.containsKey(name) ) {
+					throw new JsonParseException("Unbound parameter {{" + name + "}}");
+				}
+				return toBsonValue( params.get(name) );
+			}
+			if ( s.indexOf(STRING_SLOT) >= 0 ) {
+				return new BsonString( bindString(s, params) );
+			}
+			return value;
+		}
+
+		if ( !slotted.contains(value) ) {
+			return value;
+		}
+
+		if ( value.isDocument() ) {
+			BsonDocument bound = new BsonDocument();
+			for ( Map.Entry<String,BsonValue> e : value.asDocument().entrySet() ) {
+				bound.put( e.getKey(), bindValue(e.getValue(), params) );
+			}
+			return bound;
+		} else {
+			BsonArray bound = new BsonArray();
+			for ( BsonValue v : value.asArray() ) {
+				bound.add( bindValue(v, params) );
+			}
+			return bound;
+		}
+	}
+
+	private String bindString( String s, Map<String,Object> params ) {
+		StringBuilder sb = new StringBuilder();
+		int pos = 0;
+		int start;
+		while ( (start = s.indexOf(STRING_SLOT, pos)) >= 0 ) {
+			int end = s.indexOf(STRING_SLOT, start + 1);
+			String name = s.substring(start + 1, end);
+			sb.append( s, pos, start );
+			if ( params.containsKey(name) ) {
+				sb.append( String.valueOf(params.get(name)) );
+			} else {
+				sb.append( "{{" ).append( name ).append( "}}" );
+			}
+			pos = end + 1;
+		}
+		sb.append( s.substring(pos) );
+		return sb.toString();
+	}
+
+	/**
+	 * Convert a parameter value into a BSON value
+	 * @param o the parameter value
+	 * @return the BSON value
+	 */
+	@SuppressWarnings("unchecked")
+	static BsonValue toBsonValue( Object o ) {
+		if ( o == null ) return BsonNull.VALUE;
+		if ( o instanceof BsonValue ) return (BsonValue) o;
+		if ( o instanceof Boolean ) return BsonBoolean.valueOf( (Boolean) o );
+		if ( o instanceof Integer || o instanceof Short || o instanceof Byte ) return new BsonInt32( ((Number) o).intValue() );
+		if ( o instanceof Long ) {
+			long l = (Long) o;
+			if ( l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ) return new BsonInt32( (int) l );
+			return new BsonInt64( l );
+		}
+		if ( o instanceof Number ) return new BsonDouble( ((Number) o).doubleValue() );
+		if ( o instanceof Date ) return new BsonDateTime( ((Date) o).getTime() );
+		if ( o instanceof Map ) return new Document( (Map<String,Object>) o ).toBsonDocument( BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry() );
+		if ( o instanceof Collection ) {
+			BsonArray array = new BsonArray();
+			for ( Object item : (Collection<Object>) o ) {
+				array.add( toBsonValue(item) );
+			}
+			return array;
+		}
+
+		// verbatim semantics: the textual value is interpreted as a JSON value
+		String text = String.valueOf(o);
+		BsonValue parsed = parsedValues.get(text);
+		if ( parsed == null ) {
+			parsed = BsonDocument.parse( "{ \"v\": " + text + "}" ).get("v");
+			if ( !parsed.isDocument() && !parsed.isArray() ) {
+				parsedValues.put(text, parsed);
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Replace placeholders by slot markers. Placeholders standing as a value become a JSON string
+	 * containing a value slot, placeholders within JSON strings become string slots.
+	 */
+	private static String markSlots( String template ) {
+		StringBuilder sb = new StringBuilder();
+		char quote = 0;
+		int i = 0;
+		while ( i < template.length() ) {
+			char c = template.charAt(i);
+
+			if ( c == '{' && template.startsWith("{{", i) ) {
+				int end = template.indexOf("}}", i + 2);
+				if ( end > 0 ) {
+					String name = template.substring(i + 2, end).trim();
+					if ( quote == 0 ) {
+						sb.append("\"").append( escapedMarker(VALUE_SLOT) ).append(name).append( escapedMarker(VALUE_SLOT) ).append("\"");
+					} else {
+						sb.append( escapedMarker(STRING_SLOT) ).append(name).append( escapedMarker(STRING_SLOT) );
+					}
+					i = end + 2;
+					continue;
+				}
+			}
+
+			if ( quote != 0 && c == '\\' && i + 1 < template.length() ) {
+				sb.append(c).append( template.charAt(i + 1) );
+				i += 2;
+				continue;
+			}
+			if ( quote == 0 && (c == '"' || c == '\'') ) {
+				quote = c;
+			} else if ( quote != 0 && c == quote ) {
+				quote = 0;
+			}
+			sb.append(c);
+			i++;
+		}
+		return sb.toString();
+	}
+
+	private static String escapedMarker( char marker ) {
+		return String.format("\\u%04x", (int) marker);
+	}
+
+	/**
+	 * Register all documents and arrays containing slots.
+	 * A slot used as a document key can't be bound, the template can't be compiled then.
+	 * @return true if the value contains a slot
+	 */
+	private boolean collectSlotted( BsonValue value ) {
+		if ( value.isString() ) {
+			String s = value.asString().getValue();
+			return s.indexOf(VALUE_SLOT) >= 0 || s.indexOf(STRING_SLOT) >= 0;
+		}
+
+		boolean containsSlot = false;
+		if ( value.isDocument() ) {
+			for ( Map.Entry<String,BsonValue> e : value.asDocument().entrySet() ) {
+				if ( e.getKey().indexOf(VALUE_SLOT) >= 0 || e.getKey().indexOf(STRING_SLOT) >= 0 ) {
+					throw new IllegalArgumentException("Parameter used as key: " + e.getKey());
+				}
+				containsSlot |= collectSlotted( e.getValue() );
+			}
+		} else if ( value.isArray() ) {
+			for ( BsonValue v : value.asArray() ) {
+				containsSlot |= collectSlotted( v );
+			}
+		}
+
+		if ( containsSlot ) {
+			slotted.add(value);
+		}
+		return containsSlot;
+	}
+
+	private static Set<String> findParameters( String template ) {
+		Set<String> result = new LinkedHashSet<>();
+		if ( template == null ) return result;
+
+		Matcher m = PLACEHOLDER.matcher(template);
+		while ( m.find() ) {
+			result.add( m.group(1).trim() );
+		}
+		return result;
+	}
+
+}
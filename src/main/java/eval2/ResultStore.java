@@ -0,0 +1,271 @@
+package eval2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.Document;
+
+/**
+ * Persistent store of aggregation results for source collections with frozen history.
+ *
+ * For each collection configured with 'result.store.immutable.&lt;collection&gt;=yyyy-MM-dd' in eval.properties,
+ * results of aggregations for evaluationDates before that date are stored in the file
+ * '&lt;result.store.dir&gt;/&lt;collection&gt;.store', keyed by the fingerprint of the bound pipeline.
+ * A store file is an append-only sequence of records [key length, key, value length, BSON value]. It is
+ * memory-mapped in segments of 1 GB when opened, records appended later are read from the file channel.
+ */
+public class ResultStore {
+
+	private static final Logger log = Logger.getLogger("eval2.ResultStore");
+
+	private static final String IMMUTABLE_PREFIX = "result.store.immutable.";
+
+	private static final Codec<Document> documentCodec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+	// Store used by all MongoDB instances, disabled until configured
+	private static volatile ResultStore instance = new ResultStore(null, new Properties());
+
+	// Directory of the store files, null if the store is disabled
+	private final File directory;
+
+	private final Properties evalProperties;
+
+	// Open store files: collection -> file
+	private final Map<String,StoreFile> files = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private ResultStore( File directory, Properties evalProperties ) {
+		this.directory = directory;
+		this.evalProperties = evalProperties;
+	}
+
+	/**
+	 * Configure the result store from eval.properties
+	 * @param evalProperties contents of eval.properties
+	 */
+	public static void configure( Properties evalProperties ) {
+		instance.close();
+		String dir = evalProperties.getProperty("result.store.dir");
+		File directory = null;
+		if ( dir != null && !dir.trim().isEmpty() ) {
+			directory = new File( dir.trim() );
+			if ( !directory.isDirectory() && !directory.mkdirs() ) {
+				log.warning("Result store directory " + directory + " can't be created, result store disabled.\n");
+				directory = null;
+			} else {
+				log.info("Result store enabled: " + directory.getAbsolutePath() + "\n");
+			}
+		}
+		instance = new ResultStore( directory, evalProperties );
+	}
+
+	public static ResultStore getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	/**
+	 * Check whether results of a collection for an evaluationDate are stored:
+	 * the collection has to be declared immutable before a date later than evaluationDate
+	 * @param collection the source collection
+	 * @param evaluationDate the evaluationDate (yyyy-MM-dd), may be null
+	 * @return true if results are read from and written to the store
+	 */
+	public boolean isStored( String collection, String evaluationDate ) {
+		if ( directory == null || evaluationDate == null ) return false;
+		String immutableBefore = evalProperties.getProperty(IMMUTABLE_PREFIX + collection);
+		// ISO dates compare lexicographically
+		return immutableBefore != null && evaluationDate.compareTo( immutableBefore.trim() ) < 0;
+	}
+
+	/**
+	 * Read a stored result
+	 * @param collection the source collection
+	 * @param fingerprint fingerprint of the bound pipeline
+	 * @return the stored result, null if not stored
+	 */
+	public List<Document> get( String collection, String fingerprint ) {
+		try {
+			byte[] value = getFile(collection).read(fingerprint);
+			if ( value == null ) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return new RawBsonDocument(value).decode(documentCodec).getList("r", Document.class);
+		} catch ( IOException e ) {
+			log.warning("Reading result store of " + collection + " failed: " + e.getMessage() + "\n");
+			return null;
+		}
+	}
+
+	/**
+	 * Store a result
+	 * @param collection the source collection
+	 * @param fingerprint fingerprint of the bound pipeline
+	 * @param result the aggregation result
+	 */
+	public void put( String collection, String fingerprint, List<Document> result ) {
+		RawBsonDocument value = new RawBsonDocument( new Document("r", result), documentCodec );
+		ByteBuffer buffer = value.getByteBuffer().asNIO();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		try {
+			getFile(collection).append(fingerprint, bytes);
+		} catch ( IOException e ) {
+			log.warning("Writing result store of " + collection + " failed: " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 * @return hit/miss statistics of the store
+	 */
+	public String getStatistics() {
+		return "Result store: " + hits.get() + " hits, " + misses.get() + " misses";
+	}
+
+	private synchronized StoreFile getFile( String collection ) throws IOException {
+		StoreFile f = files.get(collection);
+		if ( f == null ) {
+			f = new StoreFile( new File(directory, collection + ".store") );
+			files.put(collection, f);
+		}
+		return f;
+	}
+
+	private synchronized void close() {
+		for ( StoreFile f : files.values() ) {
+			try {
+				f.close();
+			} catch ( IOException e ) {
+				log.warning("Closing result store failed: " + e.getMessage() + "\n");
+			}
+		}
+		files.clear();
+	}
+
+	/**
+	 * An append-only store file with an in-memory index of its records
+	 */
+	private static class StoreFile {
+
+		// size of the mapped segments, a single mapping is limited to 2 GB
+		private static final long SEGMENT_SIZE = 1L << 30;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+
+		// mapped segments of the file as opened, segment i starts at i * SEGMENT_SIZE
+		private final List<MappedByteBuffer> segments = new ArrayList<>();
+		private final long mappedSize;
+
+		// fingerprint -> {value position, value length}
+		private final Map<String,long[]> index = new HashMap<>();
+
+		StoreFile( File f ) throws IOException {
+			file = new RandomAccessFile(f, "rw");
+			channel = file.getChannel();
+			mappedSize = channel.size();
+			for ( long start = 0; start < mappedSize; start += SEGMENT_SIZE ) {
+				segments.add( channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, mappedSize - start) ) );
+			}
+
+			// index the records, a truncated last record (interrupted write) is discarded
+			long pos = 0;
+			while ( pos + 4 <= mappedSize ) {
+				int keyLength = readMappedInt(pos);
+				if ( keyLength <= 0 || pos + 4 + keyLength + 4 > mappedSize ) break;
+				byte[] key = new byte[keyLength];
+				readMapped(pos + 4, key);
+				int valueLength = readMappedInt(pos + 4 + keyLength);
+				long valuePosition = pos + 4 + keyLength + 4;
+				if ( valueLength < 0 || valuePosition + valueLength > mappedSize ) break;
+				index.put( new String(key, StandardCharsets.UTF_8), new long[] { valuePosition, valueLength } );
+				pos = valuePosition + valueLength;
+			}
+			channel.truncate(pos);
+		}
+
+		/**
+		 * Copy mapped bytes, possibly spanning several segments
+		 * @param pos position in the file
+		 * @param dst the bytes to read
+		 */
+		private void readMapped( long pos, byte[] dst ) {
+			int done = 0;
+			while ( done < dst.length ) {
+				long p = pos + done;
+				ByteBuffer view = segments.get( (int) (p / SEGMENT_SIZE) ).duplicate();
+				view.position( (int) (p % SEGMENT_SIZE) );
+				int n = Math.min( view.remaining(), dst.length - done );
+				view.get(dst, done, n);
+				done += n;
+			}
+		}
+
+		private int readMappedInt( long pos ) {
+			byte[] bytes = new byte[4];
+			readMapped(pos, bytes);
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+
+		synchronized byte[] read( String fingerprint ) throws IOException {
+			long[] entry = index.get(fingerprint);
+			if ( entry == null ) return null;
+
+			byte[] value = new byte[(int) entry[1]];
+			if ( entry[0] + entry[1] <= mappedSize ) {
+				readMapped(entry[0], value);
+			} else {
+				ByteBuffer buffer = ByteBuffer.wrap(value);
+				long pos = entry[0];
+				while ( buffer.hasRemaining() ) {
+					int n = channel.read(buffer, pos + buffer.position());
+					if ( n < 0 ) throw new IOException("Unexpected end of result store");
+				}
+			}
+			return value;
+		}
+
+		synchronized void append( String fingerprint, byte[] value ) throws IOException {
+			if ( index.containsKey(fingerprint) ) return;
+
+			byte[] key = fingerprint.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(4 + key.length + 4 + value.length);
+			record.putInt(key.length).put(key).putInt(value.length).put(value);
+			record.flip();
+
+			long pos = channel.size();
+			while ( record.hasRemaining() ) {
+				channel.write(record, pos + record.position());
+			}
+			index.put( fingerprint, new long[] { pos + 4 + key.length + 4, value.length } );
+		}
+
+		synchronized void close() throws IOException {
+			channel.force(false);
+			file.close();
+		}
+	}
+
+}
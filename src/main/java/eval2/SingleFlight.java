@@ -0,0 +1,96 @@
+package eval2;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+/**
+ * Coalescing of identical aggregations in flight: concurrent callers executing the same aggregation
+ * (server, database, collection, bound pipeline) share a single execution and its result.
+ * Failures of the shared execution are rethrown to all callers. Results are not retained after
+ * the execution completed, see QueryCache for caching.
+ */
+public class SingleFlight {
+
+	private static final SingleFlight instance = new SingleFlight();
+
+	// executions in flight
+	private final ConcurrentHashMap<QueryCache.Key,CompletableFuture<List<Document>>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	private SingleFlight() {
+	}
+
+	public static SingleFlight getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Execute an aggregation, or wait for the identical aggregation in flight
+	 * @param server address of the MongoDB server (ip:port)
+	 * @param database the database
+	 * @param collection the collection the aggregation runs on
+	 * @param pipeline the bound aggregation pipeline
+	 * @param options options of the aggregation affecting its execution (hint, maxTimeMS)
+	 * @param search executes the aggregation
+	 * @return the aggregation result
+	 */
+	public List<Document> execute( String server, MongoDatabase database, String collection, List<? extends BsonDocument> pipeline, String options,
+			Supplier<List<Document>> search ) {
+		QueryCache.Key key = new QueryCache.Key( server, database.getName(), collection, pipeline, options );
+
+		CompletableFuture<List<Document>> execution = new CompletableFuture<>();
+		CompletableFuture<List<Document>> running = inFlight.putIfAbsent( key, execution );
+		if ( running != null ) {
+			shared.incrementAndGet();
+			return await(running);
+		}
+
+		executions.incrementAndGet();
+		try {
+			List<Document> result = search.get();
+			execution.complete(result);
+			return result;
+		} catch ( RuntimeException | Error e ) {
+			execution.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove( key, execution );
+		}
+	}
+
+	private List<Document> await( CompletableFuture<List<Document>> running ) {
+		try {
+			return running.join();
+		} catch ( CompletionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+			if ( cause instanceof Error ) throw (Error) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if any execution was shared
+	 */
+	public boolean hasShared() {
+		return shared.get() > 0;
+	}
+
+	/**
+	 * @return statistics of shared executions
+	 */
+	public String getStatistics() {
+		return "Single-flight: " + executions.get() + " executions, " + shared.get() + " shared";
+	}
+
+}
@@ -0,0 +1,157 @@
+package eval2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+
+import util.Schemas;
+
+/**
+ * Watermarks of source collections: the number of documents and, if a watermark field is configured
+ * for the collection (project.properties 'watermark.field.&lt;collection&gt;'), the maximum value of that field.
+ * The watermarks observed by an evaluation are stored per (project, evaluationDate, collection) in the
+ * target collection 'watermarks.&lt;project.name&gt;'. Unchanged watermarks indicate unchanged source data.
+ */
+public class Watermarks {
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	public static final String WATERMARKS_INDEX = "watermarks";
+
+	private static final String FIELD_PREFIX = "watermark.field.";
+
+	private final MongoDB mongodbSource;
+	private final MongoDB mongodbTarget;
+	private final Properties projectProperties;
+	private final String projectName;
+
+	// current watermarks of the source collections, computed once
+	private final Map<String,Document> current = new HashMap<>();
+
+	public Watermarks( MongoDB mongodbSource, MongoDB mongodbTarget, Properties projectProperties ) {
+		this.mongodbSource = mongodbSource;
+		this.mongodbTarget = mongodbTarget;
+		this.projectProperties = projectProperties;
+		this.projectName = projectProperties.getProperty("project.name");
+	}
+
+	/**
+	 * Get the current watermark of a source collection
+	 * @param collectionName name of the source collection
+	 * @return the watermark document {count, max}
+	 */
+	public synchronized Document getCurrent( String collectionName ) {
+		Document watermark = current.get(collectionName);
+		if ( watermark == null ) {
+			String field = projectProperties.getProperty(FIELD_PREFIX + collectionName);
+			watermark = compute( mongodbSource.getDatabase(), collectionName, field );
+			current.put(collectionName, watermark);
+			log.info("Watermark of " + collectionName + ": " + watermark + "\n");
+		}
+		return watermark;
+	}
+
+	/**
+	 * Compute the watermark of a collection
+	 * @param database the database of the collection
+	 * @param collectionName name of the collection
+	 * @param field watermark field, null to use the document count only
+	 * @return the watermark document {count, max}
+	 */
+	public static Document compute( MongoDatabase database, String collectionName, String field ) {
+		MongoCollection<Document> collection = database.getCollection(collectionName);
+		Document watermark = new Document("count", collection.estimatedDocumentCount());
+
+		if ( field != null ) {
+			Document last = collection.find()
+				.sort( Sorts.descending(field) )
+				.projection( Projections.include(field) )
+				.limit(1)
+				.first();
+			watermark.append("max", last == null ? null : last.get(field));
+		}
+		return watermark;
+	}
+
+	/**
+	 * Load the watermarks stored by the last evaluation of an evaluationDate
+	 * @param evaluationDate the evaluationDate
+	 * @return Map of collection name -> watermark document
+	 */
+	public Map<String,Document> loadStored( String evaluationDate ) {
+		Map<String,Document> result = new HashMap<>();
+		Document filter = new Document("project", projectName).append("evaluationDate", evaluationDate);
+		for ( Document d : getCollection().find(filter) ) {
+			result.put( d.getString("collection"), (Document) d.get("watermark") );
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether the current watermarks of source collections equal the stored ones
+	 * @param stored watermarks stored for an evaluationDate
+	 * @param collectionNames the source collections
+	 * @return true if all collections are unchanged
+	 */
+	public boolean unchanged( Map<String,Document> stored, List<String> collectionNames ) {
+		for ( String collectionName : collectionNames ) {
+			Document s = stored.get(collectionName);
+			if ( s == null || !s.equals( getCurrent(collectionName) ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Store the current watermarks of source collections for an evaluationDate
+	 * @param evaluationDate the evaluationDate
+	 * @param collectionNames the source collections
+	 */
+	public void store( String evaluationDate, List<String> collectionNames ) {
+		MongoCollection<Document> collection = getCollection();
+		for ( String collectionName : collectionNames ) {
+			String id = projectName + "-" + collectionName + "-" + evaluationDate;
+			Document d = new Document("_id", id)
+				.append("project", projectName)
+				.append("evaluationDate", evaluationDate)
+				.append("collection", collectionName)
+				.append("watermark", getCurrent(collectionName));
+			collection.replaceOne( new Document("_id", id), d, new ReplaceOptions().upsert(true) );
+		}
+	}
+
+	/**
+	 * Get the source collections a metric depends on: its own index and the indexes of all param queries
+	 * @param metricQuery the metric query
+	 * @param paramQuerySet the param queries
+	 * @return names of the source collections
+	 */
+	public static List<String> getInputCollections( QueryDef metricQuery, Map<String,QueryDef> paramQuerySet ) {
+		List<String> result = new ArrayList<>();
+		result.add( metricQuery.getProperty("index") );
+		for ( QueryDef paramQuery : paramQuerySet.values() ) {
+			String index = paramQuery.getProperty("index");
+			if ( !result.contains(index) ) {
+				result.add(index);
+			}
+		}
+		return result;
+	}
+
+	private MongoCollection<Document> getCollection() {
+		new CollectionManager(mongodbTarget).ensureIndexes( WATERMARKS_INDEX + "." + projectName, Schemas.WATERMARKS_INDEXES );
+		return mongodbTarget.getDatabase().getCollection( WATERMARKS_INDEX + "." + projectName );
+	}
+
+}
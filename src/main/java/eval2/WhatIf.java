@@ -0,0 +1,128 @@
+package eval2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import type.Indicator;
+
+/**
+ * What-if re-evaluation of a project: the metrics stored for a range of evaluationDates are loaded from the
+ * target MongoDB and the relations, factors and indicators are recomputed in memory under the current quality
+ * model (weights of the metrics, factors.properties, indicators.properties), see EvalProject.evaluateModel.
+ * The source MongoDB is never connected. The recomputed indicators are reported next to the stored ones;
+ * with a scenario name, all results are written to the target collections suffixed by '_&lt;scenario&gt;'
+ * (e.g. factors_&lt;scenario&gt;.&lt;project.name&gt;), the stored evaluation is left untouched.
+ */
+public class WhatIf {
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	// Target collections written by a scenario
+	private static final String[] TARGET_INDEXES = { "metrics.index", "relations.index", "factors.index", "indicators.index" };
+
+	// Project folder containing queries, properties etc.
+	private final File projectFolder;
+
+	// evaluationDates of the range
+	private final List<String> evaluationDates;
+
+	// Name of the scenario, null to report only
+	private final String scenario;
+
+	public WhatIf( File projectFolder, List<String> evaluationDates, String scenario ) {
+		if ( scenario != null && !scenario.matches("[A-Za-z0-9_-]+") ) {
+			throw new IllegalArgumentException("Invalid scenario name: " + scenario);
+		}
+		this.projectFolder = projectFolder;
+		this.evaluationDates = evaluationDates;
+		this.scenario = scenario;
+	}
+
+	public void run() {
+
+		EvalProject base = new EvalProject( projectFolder, evaluationDates.get(0) );
+		base.openTarget();
+		try {
+			MongoDB mongodbTarget = base.getMongodbTarget();
+			Map<String,Map<String,Document>> storedMetrics = mongodbTarget.loadMetrics( base.getProjectProperties(), evaluationDates );
+			Map<String,QueryDef> enabledQueries = base.getEnabledMetricQueries();
+
+			List<EvalProject.Evaluation> evaluations = new ArrayList<>();
+			int loaded = 0;
+			for ( String evaluationDate : evaluationDates ) {
+				Map<String,Document> stored = storedMetrics.getOrDefault( evaluationDate, Collections.emptyMap() );
+				if ( stored.isEmpty() ) {
+					log.warning("No metrics stored for evaluationDate " + evaluationDate + ", skipped.\n");
+					continue;
+				}
+
+				EvalProject day = base.forDate( evaluationDate );
+				EvalProject.Evaluation evaluation = new EvalProject.Evaluation( evaluationDate );
+				evaluation.metrics = new ArrayList<>();
+				for ( Entry<String,QueryDef> e : enabledQueries.entrySet() ) {
+					Document d = stored.get( e.getValue().getName() );
+					if ( d != null && d.get("value") instanceof Number ) {
+						evaluation.metrics.add( day.storedMetric( e.getValue(), d ) );
+					}
+				}
+				loaded += evaluation.metrics.size();
+				evaluations.add( evaluation );
+			}
+			log.info("What-if: " + loaded + " stored metrics loaded for " + evaluations.size() + " evaluationDates\n");
+			if ( evaluations.isEmpty() ) return;
+
+			base.evaluateModel( evaluations );
+			report( mongodbTarget.loadIndicators( base.getProjectProperties(), evaluationDates ), evaluations );
+
+			if ( scenario != null ) {
+				Properties scenarioProperties = getScenarioProperties( base.getProjectProperties() );
+				log.info("Storing what-if scenario " + scenario + "\n");
+				for ( EvalProject.Evaluation evaluation : evaluations ) {
+					// a scenario is always written completely, dirty tracking compares with the scenario collections
+					base.forDate( evaluation.evaluationDate ).store( evaluation, scenarioProperties, false );
+				}
+			}
+		} finally {
+			base.close();
+		}
+	}
+
+	/**
+	 * Log the recomputed indicators next to the stored ones
+	 */
+	private void report( Map<String,Map<String,Document>> storedIndicators, List<EvalProject.Evaluation> evaluations ) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("What-if indicators of project folder " + projectFolder.getName() + (scenario != null ? ", scenario " + scenario : "") + "\n");
+		for ( EvalProject.Evaluation evaluation : evaluations ) {
+			Map<String,Document> stored = storedIndicators.getOrDefault( evaluation.evaluationDate, Collections.emptyMap() );
+			for ( Indicator ind : evaluation.indicators ) {
+				Document d = stored.get( ind.getIndicator() );
+				Object storedValue = ( d != null ) ? d.get("value") : null;
+				sb.append( String.format("%s %-30s %10.4f (stored %s)%n", evaluation.evaluationDate, ind.getIndicator(), ind.getValue(),
+					storedValue instanceof Number ? String.format("%.4f", ((Number) storedValue).doubleValue()) : "-") );
+			}
+		}
+		log.info( sb.toString() );
+	}
+
+	/**
+	 * Get the project properties with the target collection names of the scenario
+	 */
+	private Properties getScenarioProperties( Properties projectProperties ) {
+		Properties result = new Properties();
+		result.putAll( projectProperties );
+		for ( String index : TARGET_INDEXES ) {
+			result.setProperty( index, projectProperties.getProperty(index) + "_" + scenario );
+		}
+		return result;
+	}
+
+}
@@ -3,10 +3,21 @@ package type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class Metric extends IndexItem {
 	
+	// Fingerprint of the bound metric query, null if not recorded
+	private String queryFingerprint;
+	
+	// Execution result of the metric query, stored together with the fingerprint
+	private Map<String, Object> queryResult;
+	
+	// Fingerprint of the definitions (metric query, param queries) the value was computed by, null if not recorded
+	private String definitionFingerprint;
+	
 	public Metric( 
 			
 			String project, 
@@ -64,6 +75,27 @@ public class Metric extends IndexItem {
 		this.parents = factors;
 	}
 
+	public String getQueryFingerprint() {
+		return queryFingerprint;
+	}
+
+	public Map<String, Object> getQueryResult() {
+		return queryResult;
+	}
+
+	public void setQueryResult(String queryFingerprint, Map<String, Object> queryResult) {
+		this.queryFingerprint = queryFingerprint;
+		this.queryResult = queryResult;
+	}
+
+	public String getDefinitionFingerprint() {
+		return definitionFingerprint;
+	}
+
+	public void setDefinitionFingerprint(String definitionFingerprint) {
+		this.definitionFingerprint = definitionFingerprint;
+	}
+
 	public Map<String, Object> getMap() {
 		Map<String, Object> result = new HashMap<>();
 		ArrayList<Double> arrayListWeights = new ArrayList<>(Arrays.asList(weights));
@@ -83,9 +115,33 @@ public class Metric extends IndexItem {
 		result.put("info", info);
 
 		result.put("evaluationDate", evaluationDate);
+		
+		if ( definitionFingerprint != null ) {
+			result.put("definitionFingerprint", definitionFingerprint);
+		}
+		if ( queryFingerprint != null ) {
+			result.put("queryFingerprint", queryFingerprint);
+			result.put("queryResult", getQueryResultList());
+		}
 
 		return result;
 		
 	}
+	
+	/**
+	 * @return the execution result as list of {name, value} pairs, result names (e.g. complexity.good) may contain dots
+	 * not allowed in field names of older MongoDB versions
+	 */
+	private List<Map<String,Object>> getQueryResultList() {
+		if ( queryResult == null ) return null;
+		List<Map<String,Object>> result = new ArrayList<>();
+		for ( Map.Entry<String,Object> e : new TreeMap<>(queryResult).entrySet() ) {
+			Map<String,Object> pair = new HashMap<>();
+			pair.put("name", e.getKey());
+			pair.put("value", e.getValue());
+			result.add(pair);
+		}
+		return result;
+	}
 
 }
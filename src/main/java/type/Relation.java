@@ -42,7 +42,8 @@ public class Relation extends IndexItem {
 		result.put("value", value);
 		result.put("weight", weight);
 
-		result.put("targetValue", target.getValue().toString());
+		// the target value is unknown while the target is computed from its relations
+		result.put("targetValue", target.getValue() == null ? null : target.getValue().toString());
 		result.put("sourceLabel", null);
 
 		return result;
@@ -73,6 +74,14 @@ public class Relation extends IndexItem {
 		this.evaluationDate = evaluationDate;
 	}
 
+	public IndexItem getSource() {
+		return source;
+	}
+
+	public IndexItem getTarget() {
+		return target;
+	}
+
 	public Double getWeight() {
 		return weight;
 	}
@@ -0,0 +1,15 @@
+package util;
+
+/**
+ * A formula compiled into a function of its variable slots
+ */
+public interface CompiledFormula {
+
+	/**
+	 * Evaluate the formula
+	 * @param vars variable values, in the order of Formula.getVariables()
+	 * @return value of the formula
+	 */
+	double apply(double[] vars);
+
+}
@@ -1,7 +1,180 @@
 package util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
 public class Evaluator {
 	
+	private static final Logger log = Logger.getLogger("util.Evaluator");
+	
+	private static final MethodType UNARY = MethodType.methodType(double.class, double.class);
+	private static final MethodType BINARY = MethodType.methodType(double.class, double.class, double.class);
+	private static final MethodType FORMULA = MethodType.methodType(double.class, double[].class);
+	
+	// Compiled formulas: formula text -> compiled formula
+	private static final Map<String, CompiledFormula> compiledFormulas = new ConcurrentHashMap<>();
+	
+	// Class file of the FormulaClass template
+	private static byte[] formulaClassBytes;
+	
+	// MethodHandle handed to the FormulaClass copy being initialized
+	private static final ThreadLocal<MethodHandle> definedHandle = new ThreadLocal<>();
+	
+	/**
+	 * Compile a formula into a MethodHandle tree of type (double[])double, held in a static final
+	 * field of a class defined for the formula (see FormulaClass). The handle tree is evaluated
+	 * without allocations and inlined by the JIT.
+	 * Each distinct formula is compiled once. Formulas containing constructs the compiler
+	 * doesn't support are evaluated by the interpreter (Formula.evaluate).
+	 * @param formula the parsed formula
+	 * @return the compiled formula
+	 */
+	public static CompiledFormula compile(final Formula formula) {
+		return compiledFormulas.computeIfAbsent( formula.getFormula(), f -> {
+			try {
+				return defineFormulaClass( toHandle( formula.getRoot() ) );
+			} catch (ReflectiveOperationException | IOException | RuntimeException e) {
+				log.warning("Formula " + f + " can't be compiled, using interpreter: " + e.getMessage());
+				return formula::evaluate;
+			}
+		});
+	}
+	
+	/**
+	 * Define a copy of FormulaClass holding a MethodHandle
+	 * @param handle the MethodHandle tree of a formula
+	 * @return instance of the defined class
+	 */
+	private static CompiledFormula defineFormulaClass(MethodHandle handle) throws ReflectiveOperationException, IOException {
+		FormulaClassLoader loader = new FormulaClassLoader();
+		definedHandle.set(handle);
+		try {
+			return (CompiledFormula) Class.forName( FormulaClass.class.getName(), true, loader ).getConstructor().newInstance();
+		} finally {
+			definedHandle.remove();
+		}
+	}
+	
+	/**
+	 * @return the MethodHandle of the FormulaClass copy being initialized, called by its static initializer
+	 */
+	public static MethodHandle handleOfDefinedClass() {
+		MethodHandle handle = definedHandle.get();
+		if ( handle == null ) {
+			throw new IllegalStateException("FormulaClass is defined by Evaluator.compile only");
+		}
+		return handle;
+	}
+	
+	private static synchronized byte[] getFormulaClassBytes() throws IOException {
+		if ( formulaClassBytes == null ) {
+			try ( InputStream in = FormulaClass.class.getResourceAsStream( FormulaClass.class.getSimpleName() + ".class" ) ) {
+				if ( in == null ) throw new IOException("Class file of " + FormulaClass.class.getName() + " not found");
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				for ( int n = in.read(buffer); n >= 0; n = in.read(buffer) ) {
+					out.write(buffer, 0, n);
+				}
+				formulaClassBytes = out.toByteArray();
+			}
+		}
+		return formulaClassBytes;
+	}
+	
+	/**
+	 * Defines its own copy of FormulaClass, all other classes are loaded by the parent
+	 */
+	private static class FormulaClassLoader extends ClassLoader {
+		
+		private final byte[] bytes;
+		
+		FormulaClassLoader() throws IOException {
+			super( Evaluator.class.getClassLoader() );
+			this.bytes = getFormulaClassBytes();
+		}
+		
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if ( !name.equals( FormulaClass.class.getName() ) ) {
+				return super.loadClass(name, resolve);
+			}
+			synchronized ( getClassLoadingLock(name) ) {
+				Class<?> c = findLoadedClass(name);
+				if ( c == null ) {
+					c = defineClass(name, bytes, 0, bytes.length);
+				}
+				if ( resolve ) resolveClass(c);
+				return c;
+			}
+		}
+	}
+	
+	private static MethodHandle toHandle(Formula.Node node) throws ReflectiveOperationException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		
+		if ( node instanceof Formula.Constant ) {
+			MethodHandle constant = MethodHandles.constant(double.class, ((Formula.Constant) node).value);
+			return MethodHandles.dropArguments(constant, 0, double[].class);
+		}
+		
+		if ( node instanceof Formula.Variable ) {
+			MethodHandle getter = MethodHandles.arrayElementGetter(double[].class);
+			return MethodHandles.insertArguments(getter, 1, ((Formula.Variable) node).slot);
+		}
+		
+		if ( node instanceof Formula.Negate ) {
+			MethodHandle negate = lookup.findStatic(Evaluator.class, "negate", UNARY);
+			return MethodHandles.filterReturnValue( toHandle(((Formula.Negate) node).operand), negate );
+		}
+		
+		if ( node instanceof Formula.Binary ) {
+			Formula.Binary binary = (Formula.Binary) node;
+			MethodHandle operator;
+			switch ( binary.operator ) {
+				case '+': operator = lookup.findStatic(Evaluator.class, "add", BINARY); break;
+				case '-': operator = lookup.findStatic(Evaluator.class, "subtract", BINARY); break;
+				case '*': operator = lookup.findStatic(Evaluator.class, "multiply", BINARY); break;
+				case '/': operator = lookup.findStatic(Evaluator.class, "divide", BINARY); break;
+				case '^': operator = lookup.findStatic(Math.class, "pow", BINARY); break;
+				default: throw new UnsupportedOperationException("Unsupported operator " + binary.operator);
+			}
+			// (double[],double[])double -> (double[])double
+			MethodHandle operands = MethodHandles.filterArguments(operator, 0, toHandle(binary.left), toHandle(binary.right));
+			return MethodHandles.permuteArguments(operands, FORMULA, 0, 0);
+		}
+		
+		if ( node instanceof Formula.Function ) {
+			Formula.Function function = (Formula.Function) node;
+			MethodHandle f;
+			switch ( function.name ) {
+				case "sqrt": f = lookup.findStatic(Math.class, "sqrt", UNARY); break;
+				case "sin": f = lookup.findStatic(Evaluator.class, "sinDegrees", UNARY); break;
+				case "cos": f = lookup.findStatic(Evaluator.class, "cosDegrees", UNARY); break;
+				case "tan": f = lookup.findStatic(Evaluator.class, "tanDegrees", UNARY); break;
+				default: throw new UnsupportedOperationException("Unsupported function " + function.name);
+			}
+			return MethodHandles.filterReturnValue( toHandle(function.argument), f );
+		}
+		
+		throw new UnsupportedOperationException("Unsupported node " + node.getClass().getSimpleName());
+	}
+	
+	private static double negate(double x) { return -x; }
+	private static double add(double x, double y) { return x + y; }
+	private static double subtract(double x, double y) { return x - y; }
+	private static double multiply(double x, double y) { return x * y; }
+	private static double divide(double x, double y) { return x / y; }
+	private static double sinDegrees(double x) { return Math.sin(Math.toRadians(x)); }
+	private static double cosDegrees(double x) { return Math.cos(Math.toRadians(x)); }
+	private static double tanDegrees(double x) { return Math.tan(Math.toRadians(x)); }
+	
 	public static double eval(final String str) {
 	    return new Object() {
 	        int pos = -1, ch;
@@ -0,0 +1,281 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A formula parsed once into an AST with named variable slots.
+ * Variables are identifiers like complexity.good or valuesum, they are bound by name
+ * and evaluated without rewriting the formula text.
+ */
+public class Formula {
+
+	// Functions known by the parser
+	static final List<String> FUNCTIONS = Arrays.asList("sqrt", "sin", "cos", "tan");
+
+	private final String formula;
+	private final String[] variables;
+	private final Node root;
+
+	private Formula(String formula, String[] variables, Node root) {
+		this.formula = formula;
+		this.variables = variables;
+		this.root = root;
+	}
+
+	/**
+	 * Parse a formula
+	 * @param formula textual formula, e.g. complexity.good / ( complexity.good + complexity.bad )
+	 * @return the parsed Formula
+	 */
+	public static Formula parse(final String formula) {
+		if ( formula == null ) throw new IllegalArgumentException("Formula is null");
+		Parser p = new Parser(formula);
+		Node root = p.parse();
+		return new Formula(formula, p.variables.toArray(new String[0]), root);
+	}
+
+	public String getFormula() {
+		return formula;
+	}
+
+	/**
+	 * Names of the variables used in the formula, the index of a name is its slot
+	 * @return the variable names
+	 */
+	public String[] getVariables() {
+		return variables.clone();
+	}
+
+	/**
+	 * @return number of variables used in the formula
+	 */
+	public int getVariableCount() {
+		return variables.length;
+	}
+
+	Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Evaluate the formula for named variable values
+	 * @param bindings variable values (Numbers or numeric Strings)
+	 * @return value of the formula
+	 */
+	public double evaluate(Map<String, ?> bindings) {
+		return evaluate( bind(bindings) );
+	}
+
+	/**
+	 * Evaluate the formula for variable values given by slot
+	 * @param values variable values, in the order of getVariables()
+	 * @return value of the formula
+	 */
+	public double evaluate(double[] values) {
+		return root.eval(values);
+	}
+
+	/**
+	 * Resolve the variable slots of this formula
+	 * @param bindings variable values (Numbers or numeric Strings)
+	 * @return variable values in the order of getVariables()
+	 */
+	public double[] bind(Map<String, ?> bindings) {
+		return bind( bindings, new double[variables.length] );
+	}
+
+	/**
+	 * Resolve the variable slots of this formula into a reused array
+	 * @param bindings variable values (Numbers or numeric Strings)
+	 * @param values array receiving the variable values, at least getVariables().length long
+	 * @return values, the variable values in the order of getVariables()
+	 */
+	public double[] bind(Map<String, ?> bindings, double[] values) {
+		for ( int i = 0; i < variables.length; i++ ) {
+			if ( !bindings.containsKey(variables[i]) ) {
+				throw new IllegalArgumentException("Unbound variable: " + variables[i]);
+			}
+			values[i] = toDouble( variables[i], bindings.get(variables[i]) );
+		}
+		return values;
+	}
+
+	private static double toDouble(String variable, Object value) {
+		if ( value instanceof Number ) return ((Number) value).doubleValue();
+		if ( value instanceof String ) {
+			try {
+				return Double.parseDouble( ((String) value).trim() );
+			} catch ( NumberFormatException e ) {
+				// handled below
+			}
+		}
+		throw new IllegalArgumentException("Variable " + variable + " has non-numeric value: " + value);
+	}
+
+	@Override
+	public String toString() {
+		return formula;
+	}
+
+	// AST
+
+	static abstract class Node {
+		abstract double eval(double[] vars);
+	}
+
+	static class Constant extends Node {
+		final double value;
+		Constant(double value) { this.value = value; }
+		double eval(double[] vars) { return value; }
+	}
+
+	static class Variable extends Node {
+		final int slot;
+		Variable(int slot) { this.slot = slot; }
+		double eval(double[] vars) { return vars[slot]; }
+	}
+
+	static class Negate extends Node {
+		final Node operand;
+		Negate(Node operand) { this.operand = operand; }
+		double eval(double[] vars) { return -operand.eval(vars); }
+	}
+
+	static class Binary extends Node {
+		final char operator;
+		final Node left;
+		final Node right;
+		Binary(char operator, Node left, Node right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+		double eval(double[] vars) {
+			double l = left.eval(vars);
+			double r = right.eval(vars);
+			switch ( operator ) {
+				case '+': return l + r;
+				case '-': return l - r;
+				case '*': return l * r;
+				case '/': return l / r;
+				default: return Math.pow(l, r);
+			}
+		}
+	}
+
+	static class Function extends Node {
+		final String name;
+		final Node argument;
+		Function(String name, Node argument) {
+			this.name = name;
+			this.argument = argument;
+		}
+		double eval(double[] vars) {
+			double x = argument.eval(vars);
+			switch ( name ) {
+				case "sqrt": return Math.sqrt(x);
+				case "sin": return Math.sin(Math.toRadians(x));
+				case "cos": return Math.cos(Math.toRadians(x));
+				default: return Math.tan(Math.toRadians(x));
+			}
+		}
+	}
+
+	// Grammar (as util.Evaluator, with variables):
+	// expression = term | expression `+` term | expression `-` term
+	// term = factor | term `*` factor | term `/` factor
+	// factor = `+` factor | `-` factor | `(` expression `)`
+	//        | number | variable | functionName factor | factor `^` factor
+
+	private static class Parser {
+		final String str;
+		final List<String> variables = new ArrayList<>();
+		int pos = -1, ch;
+
+		Parser(String str) {
+			this.str = str;
+		}
+
+		void nextChar() {
+			ch = (++pos < str.length()) ? str.charAt(pos) : -1;
+		}
+
+		boolean eat(int charToEat) {
+			while (ch == ' ' || ch == '\t') nextChar();
+			if (ch == charToEat) {
+				nextChar();
+				return true;
+			}
+			return false;
+		}
+
+		Node parse() {
+			nextChar();
+			Node x = parseExpression();
+			while (ch == ' ' || ch == '\t') nextChar();
+			if (pos < str.length()) throw new RuntimeException("Unexpected: " + (char)ch);
+			return x;
+		}
+
+		Node parseExpression() {
+			Node x = parseTerm();
+			for (;;) {
+				if      (eat('+')) x = new Binary('+', x, parseTerm()); // addition
+				else if (eat('-')) x = new Binary('-', x, parseTerm()); // subtraction
+				else return x;
+			}
+		}
+
+		Node parseTerm() {
+			Node x = parseFactor();
+			for (;;) {
+				if      (eat('*')) x = new Binary('*', x, parseFactor()); // multiplication
+				else if (eat('/')) x = new Binary('/', x, parseFactor()); // division
+				else return x;
+			}
+		}
+
+		Node parseFactor() {
+			if (eat('+')) return parseFactor(); // unary plus
+			if (eat('-')) return new Negate(parseFactor()); // unary minus
+
+			Node x;
+			int startPos = this.pos;
+			if (eat('(')) { // parentheses
+				x = parseExpression();
+				eat(')');
+			} else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
+				while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
+				if (ch == 'E' || ch == 'e') {
+					nextChar();
+					if (ch == '+' || ch == '-') nextChar();
+					while (ch >= '0' && ch <= '9') nextChar();
+				}
+				x = new Constant(Double.parseDouble(str.substring(startPos, this.pos)));
+			} else if (Character.isLetter(ch) || ch == '_') { // functions and variables
+				while (Character.isLetterOrDigit(ch) || ch == '_' || ch == '.') nextChar();
+				String name = str.substring(startPos, this.pos);
+				if (FUNCTIONS.contains(name)) {
+					x = new Function(name, parseFactor());
+				} else {
+					int slot = variables.indexOf(name);
+					if (slot < 0) {
+						slot = variables.size();
+						variables.add(name);
+					}
+					x = new Variable(slot);
+				}
+			} else {
+				throw new RuntimeException("Unexpected: " + (char)ch);
+			}
+
+			if (eat('^')) x = new Binary('^', x, parseFactor()); // exponentiation
+
+			return x;
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package util;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Template of the classes compiled formulas are evaluated by. Evaluator defines a copy of this class
+ * per formula in a class loader of its own, each copy holds the MethodHandle tree of one formula
+ * in a static final field. The JIT treats the field as constant and inlines the handle tree.
+ */
+public final class FormulaClass implements CompiledFormula {
+
+	// MethodHandle tree of the formula, handed over by Evaluator when the copy is initialized
+	private static final MethodHandle HANDLE = Evaluator.handleOfDefinedClass();
+
+	@Override
+	public double apply(double[] vars) {
+		try {
+			return (double) HANDLE.invokeExact(vars);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+}
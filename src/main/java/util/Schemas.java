@@ -3,6 +3,7 @@ package util;
 import org.bson.Document;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class Schemas {
 
@@ -28,6 +29,9 @@ public class Schemas {
             .append("info", new Document("bsonType", Arrays.asList("string", "null")))
             .append("source", new Document("bsonType", Arrays.asList("string", "null")))
             .append("type", new Document("bsonType", Arrays.asList("string", "null")))
+            .append("definitionFingerprint", new Document("bsonType", Arrays.asList("string", "null")))
+            .append("queryFingerprint", new Document("bsonType", Arrays.asList("string", "null")))
+            .append("queryResult", new Document("bsonType", Arrays.asList("array", "null")))
         )
     );
 
@@ -96,4 +100,32 @@ public class Schemas {
         )
     );
 
+    // Secondary indexes of the target collections, keys in Equality-Sort-Range order of the queries using them
+
+    // deletion and loading of an evaluation, reuse of query results by fingerprint
+    public static final List<Document> METRICS_INDEXES = Arrays.asList(
+        new Document("project", 1).append("evaluationDate", 1),
+        new Document("project", 1).append("metric", 1).append("queryFingerprint", 1)
+    );
+
+    // deletion of an evaluation
+    public static final List<Document> FACTORS_INDEXES = Arrays.asList(
+        new Document("project", 1).append("evaluationDate", 1)
+    );
+
+    // deletion of an evaluation
+    public static final List<Document> STRATEGIC_INDICATORS_INDEXES = Arrays.asList(
+        new Document("project", 1).append("evaluationDate", 1)
+    );
+
+    // deletion of an evaluation, aggregation of relations per target in factor and indicator queries
+    public static final List<Document> RELATIONS_INDEXES = Arrays.asList(
+        new Document("project", 1).append("evaluationDate", 1).append("targetType", 1).append("targetId", 1)
+    );
+
+    // loading the watermarks of an evaluation
+    public static final List<Document> WATERMARKS_INDEXES = Arrays.asList(
+        new Document("project", 1).append("evaluationDate", 1)
+    );
+
 }